@@ -0,0 +1,77 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+/**
+ * Assembling 32 MiB of request body, received in chunks of 8 KiB, into parts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PartAssemblerBenchmark {
+
+    static final int CONTENT_SIZE = 32 * 1024 * 1024;
+
+    static final int CHUNK_SIZE = 8 * 1024;
+
+    @Param({"5242880", "16777216", "33554432"})
+    int partSize;
+
+    @Param({"none", "crc32c", "sha256"})
+    S3OsProperties.ChecksumAlgorithm checksumAlgorithm;
+
+    List<byte[]> chunks;
+
+    S3OsAttachmentHandler handler;
+
+    @Setup
+    public void setUp() {
+        handler = new S3OsAttachmentHandler(null, null, null, null, null);
+        var random = new Random(42);
+        chunks = new ArrayList<>();
+        for (int i = 0; i < CONTENT_SIZE / CHUNK_SIZE; i++) {
+            var chunk = new byte[CHUNK_SIZE];
+            random.nextBytes(chunk);
+            chunks.add(chunk);
+        }
+    }
+
+    @Benchmark
+    public long assemble() {
+        var checksums = checksumAlgorithm == S3OsProperties.ChecksumAlgorithm.none ? null
+            : new UploadChecksums(checksumAlgorithm, true);
+        return PartAssembler.assemble(content(), partNumber -> partSize, ByteBuffer::allocate,
+                checksums)
+            .map(ByteBuffer::remaining)
+            .reduce(0L, Long::sum)
+            .block();
+    }
+
+    @Benchmark
+    public long reshape() {
+        return handler.reshape(content(), partSize)
+            .map(DataBuffer::readableByteCount)
+            .reduce(0L, Long::sum)
+            .block();
+    }
+
+    Flux<DataBuffer> content() {
+        var factory = DefaultDataBufferFactory.sharedInstance;
+        return Flux.fromIterable(chunks).map(factory::wrap);
+    }
+}
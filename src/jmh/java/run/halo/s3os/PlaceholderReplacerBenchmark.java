@@ -0,0 +1,45 @@
+package run.halo.s3os;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Resolving upload locations and file names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaceholderReplacerBenchmark {
+
+    @Param({"none", "custom", "uuid", "dateWithString", "datetimeWithString"})
+    S3OsProperties.RandomFilenameMode mode;
+
+    String customTemplate = "${year}${month}${day}-${origin-filename}-${random-alphanumeric:6}";
+
+    @Benchmark
+    public String location() {
+        return FilePathUtils.getFilePathByPlaceholder("halo/${year}/${month}/${day}");
+    }
+
+    @Benchmark
+    public String replacePlaceholders() {
+        return PlaceholderReplacer.replacePlaceholders(customTemplate, "screenshot");
+    }
+
+    @Benchmark
+    public String replaceFilename() {
+        return FileNameUtils.replaceFilename("screenshot.png", mode, 8, customTemplate);
+    }
+
+    @Benchmark
+    public String replaceFilenameWithDuplicateHandling() {
+        return FileNameUtils.replaceFilenameWithDuplicateHandling("screenshot.png", mode, 8,
+            customTemplate, S3OsProperties.DuplicateFilenameHandling.randomAlphanumeric);
+    }
+}
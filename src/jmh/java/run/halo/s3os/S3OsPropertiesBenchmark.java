@@ -0,0 +1,57 @@
+package run.halo.s3os;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
+
+/**
+ * Reading policy properties from the ConfigMap, which happens on every handler call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class S3OsPropertiesBenchmark {
+
+    ConfigMap versioned;
+
+    ConfigMap unversioned;
+
+    @Setup
+    public void setUp() {
+        var json = """
+            {"bucket":"halo","endpoint":"s3.example.com","accessKey":"key",\
+            "accessSecret":"secret","location":"halo/${year}/${month}","domain":"cdn.example.com",\
+            "randomFilenameMode":"dateWithString","partConcurrency":"4","partSize":"8",\
+            "urlSuffixes":[{"fileSuffix":"jpg,png","urlSuffix":"?imageMogr2/format/webp"}]}""";
+        versioned = configMap(1L, json);
+        unversioned = configMap(null, json);
+    }
+
+    @Benchmark
+    public S3OsProperties convertCached() {
+        return S3OsProperties.convertFrom(versioned);
+    }
+
+    @Benchmark
+    public S3OsProperties convertParsed() {
+        return S3OsProperties.convertFrom(unversioned);
+    }
+
+    static ConfigMap configMap(Long version, String json) {
+        var metadata = new Metadata();
+        metadata.setName("benchmark-policy");
+        metadata.setVersion(version);
+        var configMap = new ConfigMap();
+        configMap.setMetadata(metadata);
+        configMap.setData(Map.of("default", json));
+        return configMap;
+    }
+}
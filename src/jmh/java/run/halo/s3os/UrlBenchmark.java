@@ -0,0 +1,76 @@
+package run.halo.s3os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building attachment URLs, which happens for every attachment on page render.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UrlBenchmark {
+
+    S3OsProperties properties;
+
+    List<S3OsProperties.urlSuffixItem> urlSuffixes;
+
+    Map<String, S3ThumbnailProvider.S3PropsCacheValue> thumbnailCache;
+
+    @Setup
+    public void setUp() {
+        properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setEndpoint("s3.example.com");
+        properties.setDomain("cdn.example.com");
+
+        urlSuffixes = new ArrayList<>();
+        urlSuffixes.add(new S3OsProperties.urlSuffixItem("jpg,jpeg,png,gif", "?imageMogr2/format/webp"));
+        urlSuffixes.add(new S3OsProperties.urlSuffixItem("mp4,webm", "?vframe/jpg/offset/1"));
+        urlSuffixes.add(new S3OsProperties.urlSuffixItem("pdf", "?ci-process=doc-preview"));
+        urlSuffixes.add(new S3OsProperties.urlSuffixItem("svg,webp", "?v=1"));
+        properties.setUrlSuffixes(urlSuffixes);
+
+        thumbnailCache = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            thumbnailCache.put("https://cdn" + i + ".example.com/",
+                new S3ThumbnailProvider.S3PropsCacheValue("?width={width}", "configmap-" + i));
+        }
+    }
+
+    @Benchmark
+    public String toObjectURL() {
+        return properties.toObjectURL("halo/2024/03/screenshot 01.png");
+    }
+
+    @Benchmark
+    public String findUrlSuffixMatch() {
+        return UrlUtils.findUrlSuffix(urlSuffixes, "Screenshot.WEBP");
+    }
+
+    @Benchmark
+    public String findUrlSuffixMiss() {
+        return UrlUtils.findUrlSuffix(urlSuffixes, "archive.zip");
+    }
+
+    @Benchmark
+    public String findUrlSuffixCompiled() {
+        return properties.findUrlSuffix("Screenshot.WEBP");
+    }
+
+    @Benchmark
+    public S3ThumbnailProvider.S3PropsCacheValue thumbnailPrefixLookup() {
+        return S3ThumbnailProvider.findByPrefix(thumbnailCache,
+            "https://cdn9.example.com/halo/2024/03/screenshot.png");
+    }
+}
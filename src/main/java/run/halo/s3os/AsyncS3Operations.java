@@ -0,0 +1,107 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * {@link S3Operations} on the non-blocking {@link S3AsyncClient}. No thread waits for a response,
+ * and cancelling the returned {@link Mono} cancels the request.
+ */
+public class AsyncS3Operations implements S3Operations {
+
+    private final S3AsyncClient client;
+
+    public AsyncS3Operations(S3AsyncClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public Mono<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return Mono.fromFuture(() -> client.headObject(request));
+    }
+
+    @Override
+    public Mono<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer content) {
+        return Mono.fromFuture(() -> client.putObject(request, requestBody(content)));
+    }
+
+    @Override
+    public Mono<CreateMultipartUploadResponse> createMultipartUpload(
+        CreateMultipartUploadRequest request) {
+        return Mono.fromFuture(() -> client.createMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer content) {
+        return Mono.fromFuture(() -> client.uploadPart(request, requestBody(content)));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, Path file) {
+        return Mono.fromFuture(() -> client.uploadPart(request, AsyncRequestBody.fromFile(file)));
+    }
+
+    @Override
+    public Mono<CompleteMultipartUploadResponse> completeMultipartUpload(
+        CompleteMultipartUploadRequest request) {
+        return Mono.fromFuture(() -> client.completeMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<AbortMultipartUploadResponse> abortMultipartUpload(
+        AbortMultipartUploadRequest request) {
+        return Mono.fromFuture(() -> client.abortMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return Mono.fromFuture(() -> client.deleteObject(request));
+    }
+
+    @Override
+    public Mono<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return Mono.fromFuture(() -> client.listObjectsV2(request));
+    }
+
+    @Override
+    public Mono<ListPartsResponse> listParts(ListPartsRequest request) {
+        return Mono.fromFuture(() -> client.listParts(request));
+    }
+
+    @Override
+    public Mono<ListMultipartUploadsResponse> listMultipartUploads(
+        ListMultipartUploadsRequest request) {
+        return Mono.fromFuture(() -> client.listMultipartUploads(request));
+    }
+
+    /**
+     * Publish the buffer in place. Every subscription, i.e. every attempt of the SDK, gets a fresh
+     * duplicate so that retries start from the beginning again.
+     */
+    static AsyncRequestBody requestBody(ByteBuffer buffer) {
+        return AsyncRequestBody.fromPublisher(Mono.fromSupplier(buffer::duplicate));
+    }
+}
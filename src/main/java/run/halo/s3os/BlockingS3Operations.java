@@ -0,0 +1,165 @@
+package run.halo.s3os;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import org.springframework.http.MediaType;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+import software.amazon.awssdk.utils.BinaryUtils;
+
+/**
+ * {@link S3Operations} on the blocking {@link S3Client}. Each call occupies a bounded elastic
+ * thread until the response arrives.
+ */
+public class BlockingS3Operations implements S3Operations {
+
+    private final S3Client client;
+
+    public BlockingS3Operations(S3Client client) {
+        this.client = client;
+    }
+
+    @Override
+    public Mono<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return call(() -> client.headObject(request));
+    }
+
+    @Override
+    public Mono<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer content) {
+        return cancellableCall(cancelled -> client.putObject(request,
+            requestBody(content, cancelled)));
+    }
+
+    @Override
+    public Mono<CreateMultipartUploadResponse> createMultipartUpload(
+        CreateMultipartUploadRequest request) {
+        return call(() -> client.createMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer content) {
+        return cancellableCall(cancelled -> client.uploadPart(request,
+            requestBody(content, cancelled)));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, Path file) {
+        return call(() -> client.uploadPart(request, RequestBody.fromFile(file)));
+    }
+
+    @Override
+    public Mono<CompleteMultipartUploadResponse> completeMultipartUpload(
+        CompleteMultipartUploadRequest request) {
+        return call(() -> client.completeMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<AbortMultipartUploadResponse> abortMultipartUpload(
+        AbortMultipartUploadRequest request) {
+        return call(() -> client.abortMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return call(() -> client.deleteObject(request));
+    }
+
+    @Override
+    public Mono<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return call(() -> client.listObjectsV2(request));
+    }
+
+    @Override
+    public Mono<ListPartsResponse> listParts(ListPartsRequest request) {
+        return call(() -> client.listParts(request));
+    }
+
+    @Override
+    public Mono<ListMultipartUploadsResponse> listMultipartUploads(
+        ListMultipartUploadsRequest request) {
+        return call(() -> client.listMultipartUploads(request));
+    }
+
+    private static <T> Mono<T> call(Callable<T> callable) {
+        return Mono.fromCallable(callable).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Call with a request body that stops being read once the subscription is cancelled. Blocking
+     * socket writes ignore thread interrupts, so this is what ends a cancelled upload early.
+     */
+    private static <T> Mono<T> cancellableCall(Function<BooleanSupplier, T> function) {
+        return Mono.defer(() -> {
+            var cancelled = new AtomicBoolean();
+            return call(() -> function.apply(cancelled::get))
+                .doOnCancel(() -> cancelled.set(true));
+        });
+    }
+
+    /**
+     * Request body reading the buffer in place, without the copy made by
+     * {@link RequestBody#fromByteBuffer(ByteBuffer)}. Each attempt reads from a fresh duplicate, so
+     * retries of the SDK see the whole buffer again. Reading fails once {@code cancelled} is true.
+     */
+    static RequestBody requestBody(ByteBuffer buffer, BooleanSupplier cancelled) {
+        return RequestBody.fromContentProvider(
+            () -> new CancellableInputStream(BinaryUtils.toStream(buffer.duplicate()), cancelled),
+            buffer.remaining(), MediaType.APPLICATION_OCTET_STREAM_VALUE);
+    }
+
+    static final class CancellableInputStream extends FilterInputStream {
+        private final BooleanSupplier cancelled;
+
+        CancellableInputStream(InputStream in, BooleanSupplier cancelled) {
+            super(in);
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            return super.read(b, off, len);
+        }
+
+        private void checkCancelled() throws IOException {
+            if (cancelled.getAsBoolean()) {
+                throw new IOException("Request has been cancelled.");
+            }
+        }
+    }
+}
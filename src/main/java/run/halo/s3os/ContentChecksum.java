@@ -0,0 +1,83 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.CRC32C;
+
+/**
+ * Incremental checksum in one of the algorithms supported by S3. Values are base64 encoded, the
+ * same way S3 expects them in the {@code x-amz-checksum-*} headers.
+ */
+abstract sealed class ContentChecksum {
+
+    /**
+     * Create an empty checksum.
+     *
+     * @param algorithm checksum algorithm, must not be {@code none}
+     * @return checksum
+     */
+    static ContentChecksum create(S3OsProperties.ChecksumAlgorithm algorithm) {
+        return switch (algorithm) {
+            case crc32c -> new Crc32c();
+            case sha256 -> new Sha256();
+            case none -> throw new IllegalArgumentException("No checksum algorithm chosen.");
+        };
+    }
+
+    /**
+     * Update the checksum with the bytes from position to limit, the buffer is not modified.
+     *
+     * @param bytes bytes to add
+     */
+    abstract void update(ByteBuffer bytes);
+
+    abstract byte[] digest();
+
+    /**
+     * Finish the checksum.
+     *
+     * @return base64 encoded checksum
+     */
+    String finish() {
+        return Base64.getEncoder().encodeToString(digest());
+    }
+
+    static final class Crc32c extends ContentChecksum {
+        private final CRC32C crc = new CRC32C();
+
+        @Override
+        void update(ByteBuffer bytes) {
+            crc.update(bytes.duplicate());
+        }
+
+        @Override
+        byte[] digest() {
+            return ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array();
+        }
+    }
+
+    static final class Sha256 extends ContentChecksum {
+        private final MessageDigest digest;
+
+        Sha256() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every Java platform supports SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        void update(ByteBuffer bytes) {
+            digest.update(bytes.duplicate());
+        }
+
+        @Override
+        byte[] digest() {
+            return digest.digest();
+        }
+    }
+}
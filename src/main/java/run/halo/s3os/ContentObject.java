@@ -0,0 +1,43 @@
+package run.halo.s3os;
+
+import static io.swagger.v3.oas.annotations.media.Schema.RequiredMode.REQUIRED;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import run.halo.app.extension.AbstractExtension;
+import run.halo.app.extension.GVK;
+
+/**
+ * An object uploaded by a policy with deduplication enabled, indexed by the SHA-256 hash of its
+ * content. The name is {@code <sha256 hex>.<policy name>}, see {@link #nameOf(String, String)}.
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+@GVK(group = "s3os.halo.run", version = "v1alpha1", kind = "ContentObject",
+    plural = "contentobjects", singular = "contentobject")
+public class ContentObject extends AbstractExtension {
+
+    @Schema(requiredMode = REQUIRED)
+    private Spec spec;
+
+    @Data
+    public static class Spec {
+        @Schema(requiredMode = REQUIRED)
+        private String policyName;
+
+        @Schema(requiredMode = REQUIRED)
+        private String bucket;
+
+        @Schema(requiredMode = REQUIRED)
+        private String objectKey;
+
+        private Long size;
+
+        private String contentType;
+    }
+
+    public static String nameOf(String contentHash, String policyName) {
+        return contentHash + "." + policyName;
+    }
+}
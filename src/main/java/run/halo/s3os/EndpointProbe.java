@@ -0,0 +1,372 @@
+package run.halo.s3os;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Measures latency and throughput of the endpoint of a policy and derives the part size and part
+ * concurrency that suit it.
+ * <ol>
+ *     <li>DNS lookup, TCP connect and TLS handshake, without the SDK</li>
+ *     <li>{@code HeadObject} of a missing object, answered with 404 or, without the permission to
+ *     list the bucket, 403, and {@code PutObject} of small objects</li>
+ *     <li>parts of two sizes sent one after another, giving the overhead of a part request and
+ *     the bandwidth of a single connection</li>
+ *     <li>parts sent at growing concurrency, until throughput stops growing</li>
+ * </ol>
+ * Parts are sent to one multipart upload that is aborted at the end, the small objects are
+ * deleted. The payload is generated.
+ */
+@Slf4j
+public final class EndpointProbe {
+
+    static final int MB = 1024 * 1024;
+
+    static final int SAMPLES = 5;
+
+    static final int SMALL_OBJECT_SIZE = 4 * 1024;
+
+    static final int SMALL_PART_SIZE = 5 * MB;
+
+    static final int LARGE_PART_SIZE = 16 * MB;
+
+    /**
+     * Part sizes in MB that may be recommended.
+     */
+    static final int[] PART_SIZES = {5, 8, 16, 32, 64};
+
+    static final int[] CONCURRENCY_LEVELS = {1, 2, 4, 8, 16};
+
+    /**
+     * Share of the time of a part request that the request overhead may take.
+     */
+    static final double MAX_OVERHEAD = 0.1;
+
+    /**
+     * Concurrency grows while it improves throughput by at least this factor.
+     */
+    static final double MIN_SCALING = 1.1;
+
+    /**
+     * A concurrency reaching this share of the best throughput is enough.
+     */
+    static final double ENOUGH_THROUGHPUT = 0.9;
+
+    static final long MAX_LEVEL_BYTES = 256L * MB;
+
+    static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+
+    private final S3OsProperties properties;
+
+    private final S3Operations operations;
+
+    private final long payloadSize;
+
+    private final String objectKey;
+
+    private final List<String> smallObjectKeys = new ArrayList<>();
+
+    private final AtomicInteger partNumbers = new AtomicInteger();
+
+    private ByteBuffer payload;
+
+    private String uploadId;
+
+    private double dnsMillis;
+
+    private double connectMillis;
+
+    @Nullable
+    private Double tlsHandshakeMillis;
+
+    private double headMillis;
+
+    private double putMillis;
+
+    private double partOverheadMillis;
+
+    /**
+     * Bandwidth of a single connection in bytes per nanosecond.
+     */
+    private double streamBandwidth;
+
+    private int recommendedPartSize;
+
+    private final List<ConcurrencyResult> multipart = new ArrayList<>();
+
+    /**
+     * Create a probe.
+     *
+     * @param properties properties of the policy
+     * @param operations S3 operations of the policy
+     * @param payloadSize payload in MB sent per concurrency level, clamped to 5 to 1024
+     */
+    EndpointProbe(S3OsProperties properties, S3Operations operations, int payloadSize) {
+        this.properties = properties;
+        this.operations = operations;
+        this.payloadSize = (long) Math.max(5, Math.min(payloadSize, 1024)) * MB;
+        this.objectKey = properties.getObjectName(
+            "halo-s3-plugin-probe-" + System.currentTimeMillis());
+    }
+
+    Mono<Report> run() {
+        return Mono.usingWhen(Mono.just(this),
+            (probe) -> connect()
+                .then(Mono.defer(this::headLatency))
+                .then(Mono.defer(this::putLatency))
+                .then(Mono.defer(this::partTimings))
+                .then(Mono.defer(this::concurrencySweep))
+                .then(Mono.fromSupplier(this::report)),
+            (probe) -> cleanup(),
+            (probe, e) -> cleanup(),
+            (probe) -> cleanup());
+    }
+
+    private Mono<Void> connect() {
+        return Mono.fromRunnable(() -> {
+                var https = properties.getEndpointProtocol() == S3OsProperties.Protocol.https;
+                var endpoint = URI.create(properties.getEndpointProtocol() + "://"
+                    + properties.getEndpoint());
+                if (endpoint.getHost() == null) {
+                    throw new IllegalArgumentException(
+                        "Invalid endpoint " + properties.getEndpoint() + ".");
+                }
+                var port = endpoint.getPort() > 0 ? endpoint.getPort() : https ? 443 : 80;
+                try {
+                    var start = System.nanoTime();
+                    var address = InetAddress.getByName(endpoint.getHost());
+                    dnsMillis = millisSince(start);
+                    try (var socket = new Socket()) {
+                        start = System.nanoTime();
+                        socket.connect(new InetSocketAddress(address, port),
+                            CONNECT_TIMEOUT_MILLIS);
+                        connectMillis = millisSince(start);
+                        if (https) {
+                            start = System.nanoTime();
+                            var factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                            try (var sslSocket = (SSLSocket) factory.createSocket(socket,
+                                endpoint.getHost(), port, true)) {
+                                sslSocket.startHandshake();
+                                tlsHandshakeMillis = millisSince(start);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(
+                        "Failed to connect to " + endpoint.getHost() + ":" + port + ".", e);
+                }
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .then();
+    }
+
+    private Mono<Void> headLatency() {
+        return Flux.range(0, SAMPLES)
+            .concatMap((index) -> timed(operations.headObject(HeadObjectRequest.builder()
+                    .bucket(properties.getBucket())
+                    .key(objectKey + "-missing")
+                    .build())
+                // without the permission to list the bucket, a missing object is forbidden
+                .onErrorResume((e) -> e instanceof S3Exception s3Exception
+                        && (s3Exception.statusCode() == 404 || s3Exception.statusCode() == 403),
+                    (e) -> Mono.empty())))
+            .collectList()
+            .doOnNext((samples) -> headMillis = median(samples))
+            .then();
+    }
+
+    private Mono<Void> putLatency() {
+        var content = randomBuffer(SMALL_OBJECT_SIZE);
+        return Flux.range(0, SAMPLES)
+            .concatMap((index) -> {
+                var key = objectKey + "-" + index;
+                smallObjectKeys.add(key);
+                return timed(operations.putObject(PutObjectRequest.builder()
+                    .bucket(properties.getBucket())
+                    .key(key)
+                    .contentLength((long) SMALL_OBJECT_SIZE)
+                    .build(), content));
+            })
+            .collectList()
+            .doOnNext((samples) -> putMillis = median(samples))
+            .then();
+    }
+
+    /**
+     * Send two small and two large parts one after another. The faster of each pair is taken,
+     * the difference between them is the time of the extra bytes.
+     */
+    private Mono<Void> partTimings() {
+        payload = randomBuffer(LARGE_PART_SIZE);
+        return operations.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(properties.getBucket())
+                .key(objectKey)
+                .build())
+            .doOnNext((response) -> uploadId = response.uploadId())
+            .thenMany(Flux.just(SMALL_PART_SIZE, SMALL_PART_SIZE, LARGE_PART_SIZE,
+                LARGE_PART_SIZE))
+            .concatMap((size) -> timed(uploadPart(size)))
+            .collectList()
+            .doOnNext((samples) -> {
+                var small = Math.min(samples.get(0), samples.get(1));
+                var large = Math.min(samples.get(2), samples.get(3));
+                if (large > small) {
+                    streamBandwidth = (double) (LARGE_PART_SIZE - SMALL_PART_SIZE)
+                        / (large - small);
+                    partOverheadMillis = Math.max(0, small - SMALL_PART_SIZE / streamBandwidth)
+                        / 1e6;
+                } else {
+                    // too fast to tell the overhead apart
+                    streamBandwidth = (double) LARGE_PART_SIZE / large;
+                    partOverheadMillis = 0;
+                }
+                // smallest part size whose request overhead stays below the limit
+                var neededSize = partOverheadMillis * 1e6 * streamBandwidth
+                    * (1 - MAX_OVERHEAD) / MAX_OVERHEAD;
+                recommendedPartSize = Arrays.stream(PART_SIZES)
+                    .filter((partSize) -> (long) partSize * MB >= neededSize)
+                    .findFirst()
+                    .orElse(PART_SIZES[PART_SIZES.length - 1]);
+                if ((long) recommendedPartSize * MB > payload.capacity()) {
+                    payload = randomBuffer(recommendedPartSize * MB);
+                }
+            })
+            .then();
+    }
+
+    private Mono<Void> concurrencySweep() {
+        var partSize = recommendedPartSize * MB;
+        var parts = (int) Math.max(1, payloadSize / partSize);
+        return Flux.fromStream(Arrays.stream(CONCURRENCY_LEVELS).boxed())
+            .takeWhile((concurrency) -> (long) Math.max(concurrency, parts) * partSize
+                <= Math.max(MAX_LEVEL_BYTES, payloadSize))
+            .concatMap((concurrency) -> {
+                var count = Math.max(concurrency, parts);
+                return timed(Flux.range(0, count)
+                        .flatMap((index) -> uploadPart(partSize), concurrency)
+                        .then())
+                    .map((nanos) -> new ConcurrencyResult(concurrency,
+                        (double) count * partSize / MB / (nanos / 1e9)));
+            })
+            .doOnNext(multipart::add)
+            .takeUntil((result) -> multipart.size() > 1 && result.mbPerSecond()
+                < multipart.get(multipart.size() - 2).mbPerSecond() * MIN_SCALING)
+            .then();
+    }
+
+    private Mono<Void> uploadPart(int size) {
+        return operations.uploadPart(UploadPartRequest.builder()
+                .bucket(properties.getBucket())
+                .key(objectKey)
+                .uploadId(uploadId)
+                .partNumber(partNumbers.incrementAndGet())
+                .contentLength((long) size)
+                .build(), payload.duplicate().limit(size))
+            .then();
+    }
+
+    private Report report() {
+        var best = multipart.stream().mapToDouble(ConcurrencyResult::mbPerSecond).max()
+            .orElse(0);
+        var recommendedConcurrency = multipart.stream()
+            .filter((result) -> result.mbPerSecond() >= best * ENOUGH_THROUGHPUT)
+            .mapToInt(ConcurrencyResult::concurrency)
+            .findFirst()
+            .orElse(1);
+        return new Report(dnsMillis, connectMillis, tlsHandshakeMillis, headMillis, putMillis,
+            partOverheadMillis, streamBandwidth * 1e9 / MB, List.copyOf(multipart),
+            recommendedPartSize, recommendedConcurrency);
+    }
+
+    private Mono<Void> cleanup() {
+        var deletions = Flux.fromIterable(smallObjectKeys)
+            .concatMap((key) -> operations.deleteObject(DeleteObjectRequest.builder()
+                .bucket(properties.getBucket())
+                .key(key)
+                .build()));
+        var abort = uploadId == null ? Mono.empty()
+            : operations.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                .bucket(properties.getBucket())
+                .key(objectKey)
+                .uploadId(uploadId)
+                .build());
+        return deletions.then(abort)
+            .onErrorResume((e) -> {
+                log.warn("Failed to clean up probe objects {}*.", objectKey, e);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * Nanoseconds from subscription until the request completes.
+     */
+    private static Mono<Long> timed(Mono<?> request) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return request.then(Mono.fromSupplier(() -> System.nanoTime() - start));
+        });
+    }
+
+    private static double median(List<Long> nanos) {
+        var sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return sorted[sorted.length / 2] / 1e6;
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static ByteBuffer randomBuffer(int size) {
+        var bytes = new byte[size];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Result of a probe, durations in milliseconds.
+     *
+     * @param dnsMillis DNS lookup of the endpoint host
+     * @param connectMillis TCP connect
+     * @param tlsHandshakeMillis TLS handshake, null for HTTP endpoints
+     * @param headMillis median of {@code HeadObject}
+     * @param putMillis median of {@code PutObject} of a 4 KB object
+     * @param partOverheadMillis time of a part request besides sending its bytes
+     * @param streamMbPerSecond bandwidth of a single connection
+     * @param multipart throughput of parts sent at each concurrency
+     * @param recommendedPartSize part size in MB
+     * @param recommendedPartConcurrency part concurrency
+     */
+    public record Report(double dnsMillis, double connectMillis,
+                         @Nullable Double tlsHandshakeMillis, double headMillis,
+                         double putMillis, double partOverheadMillis,
+                         double streamMbPerSecond, List<ConcurrencyResult> multipart,
+                         int recommendedPartSize, int recommendedPartConcurrency) {
+    }
+
+    public record ConcurrencyResult(int concurrency, double mbPerSecond) {
+    }
+}
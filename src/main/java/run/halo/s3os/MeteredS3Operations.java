@@ -0,0 +1,121 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * {@link S3Operations} recording the duration and outcome of every request in
+ * {@link S3Metrics} and as {@link S3RequestEvent}. Paged listings are recorded per page.
+ */
+final class MeteredS3Operations implements S3Operations {
+
+    final S3Operations delegate;
+
+    private final S3Metrics metrics;
+
+    private final String configMapName;
+
+    MeteredS3Operations(S3Operations delegate, S3Metrics metrics, String configMapName) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.configMapName = configMapName;
+    }
+
+    @Override
+    public Mono<HeadObjectResponse> headObject(HeadObjectRequest request) {
+        return record("headObject", request.bucket(), request.key(), 0,
+            delegate.headObject(request));
+    }
+
+    @Override
+    public Mono<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer content) {
+        return record("putObject", request.bucket(), request.key(), content.remaining(),
+            delegate.putObject(request, content));
+    }
+
+    @Override
+    public Mono<CreateMultipartUploadResponse> createMultipartUpload(
+        CreateMultipartUploadRequest request) {
+        return record("createMultipartUpload", request.bucket(), request.key(), 0,
+            delegate.createMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer content) {
+        return record("uploadPart", request.bucket(), request.key(), content.remaining(),
+            delegate.uploadPart(request, content));
+    }
+
+    @Override
+    public Mono<UploadPartResponse> uploadPart(UploadPartRequest request, Path file) {
+        var bytes = request.contentLength() == null ? 0 : request.contentLength();
+        return record("uploadPart", request.bucket(), request.key(), bytes,
+            delegate.uploadPart(request, file));
+    }
+
+    @Override
+    public Mono<CompleteMultipartUploadResponse> completeMultipartUpload(
+        CompleteMultipartUploadRequest request) {
+        return record("completeMultipartUpload", request.bucket(), request.key(), 0,
+            delegate.completeMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<AbortMultipartUploadResponse> abortMultipartUpload(
+        AbortMultipartUploadRequest request) {
+        return record("abortMultipartUpload", request.bucket(), request.key(), 0,
+            delegate.abortMultipartUpload(request));
+    }
+
+    @Override
+    public Mono<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        return record("deleteObject", request.bucket(), request.key(), 0,
+            delegate.deleteObject(request));
+    }
+
+    @Override
+    public Mono<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request) {
+        return record("listObjectsV2", request.bucket(), request.prefix(), 0,
+            delegate.listObjectsV2(request));
+    }
+
+    @Override
+    public Mono<ListPartsResponse> listParts(ListPartsRequest request) {
+        return record("listParts", request.bucket(), request.key(), 0,
+            delegate.listParts(request));
+    }
+
+    @Override
+    public Mono<ListMultipartUploadsResponse> listMultipartUploads(
+        ListMultipartUploadsRequest request) {
+        return record("listMultipartUploads", request.bucket(), request.prefix(), 0,
+            delegate.listMultipartUploads(request));
+    }
+
+    private <T> Mono<T> record(String operation, String bucket, String objectKey, long bytes,
+                               Mono<T> request) {
+        return metrics.timeRequest(configMapName, operation,
+            S3RequestEvent.record(operation, configMapName, bucket, objectKey, bytes, request));
+    }
+}
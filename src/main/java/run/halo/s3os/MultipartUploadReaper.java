@@ -0,0 +1,176 @@
+package run.halo.s3os;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Objects;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import run.halo.app.core.extension.attachment.Policy;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.ReactiveExtensionClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.Part;
+
+/**
+ * Periodically aborts multipart uploads that were never completed, e.g. because the upload
+ * failed or the node went down, so their parts stop taking up storage.
+ * <p>
+ * Only uploads under the location of a policy that are older than the age configured by the
+ * policy are aborted. Policies whose location starts with a placeholder are skipped, as their
+ * uploads cannot be told apart from those of other tools sharing the bucket. Upload sessions of
+ * aborted uploads are deleted as well.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MultipartUploadReaper implements InitializingBean, DisposableBean {
+
+    static final Duration INITIAL_DELAY = Duration.ofMinutes(5);
+
+    static final Duration INTERVAL = Duration.ofHours(1);
+
+    private final ReactiveExtensionClient client;
+
+    private final S3ClientPool clientPool;
+
+    private final S3OsAttachmentHandler handler;
+
+    private Disposable subscription;
+
+    @Override
+    public void afterPropertiesSet() {
+        subscription = Flux.interval(INITIAL_DELAY, INTERVAL)
+            .onBackpressureDrop()
+            .concatMap(tick -> reapAll())
+            .subscribe();
+    }
+
+    @Override
+    public void destroy() {
+        if (subscription != null) {
+            subscription.dispose();
+        }
+    }
+
+    Mono<Void> reapAll() {
+        return client.list(Policy.class, handler::shouldHandle, Comparator.naturalOrder())
+            .concatMap(policy -> client.fetch(ConfigMap.class,
+                    policy.getSpec().getConfigMapName())
+                .flatMap(configMap -> {
+                    var properties = S3OsProperties.convertFrom(configMap);
+                    var maxAge = properties.getAbortIncompleteUploadsAfter();
+                    if (maxAge == null || maxAge <= 0) {
+                        return Mono.empty();
+                    }
+                    return Mono.using(() -> clientPool.acquire(configMap, properties),
+                        lease -> reap(properties, lease.operations(),
+                            Instant.now().minus(Duration.ofHours(maxAge))),
+                        S3ClientPool.Lease::close);
+                })
+                .doOnNext(result -> {
+                    if (result.abortedUploads() > 0) {
+                        log.info("Aborted {} incomplete multipart uploads of policy {}, "
+                                + "reclaimed {} bytes.", result.abortedUploads(),
+                            policy.getMetadata().getName(), result.reclaimedBytes());
+                    }
+                })
+                .onErrorResume(e -> {
+                    log.warn("Failed to abort incomplete multipart uploads of policy {}.",
+                        policy.getMetadata().getName(), e);
+                    return Mono.empty();
+                }))
+            .then();
+    }
+
+    /**
+     * Abort the multipart uploads under the policy location initiated before the given time.
+     * Nothing is aborted if the location has no static prefix.
+     *
+     * @param properties policy properties
+     * @param operations S3 operations
+     * @param initiatedBefore uploads initiated before this time are aborted
+     * @return number of aborted uploads and the bytes their parts took
+     */
+    Mono<ReapResult> reap(S3OsProperties properties, S3Operations operations,
+                          Instant initiatedBefore) {
+        var bucket = properties.getBucket();
+        var prefix = locationPrefix(properties.getLocation());
+        if (prefix == null) {
+            // the whole bucket, uploads of other tools would be aborted as well
+            log.debug("Skipped aborting incomplete multipart uploads of bucket {}, the location "
+                + "has no static prefix.", bucket);
+            return Mono.just(new ReapResult(0, 0));
+        }
+        return operations.listAllMultipartUploads(ListMultipartUploadsRequest.builder()
+                .bucket(bucket)
+                .prefix(prefix)
+                .build())
+            .filter(upload -> upload.initiated() != null
+                && upload.initiated().isBefore(initiatedBefore)
+                && !handler.isUploading(bucket, upload.key()))
+            .concatMap(upload -> abort(bucket, upload, operations))
+            .reduce(new ReapResult(0, 0),
+                (result, reclaimed) -> new ReapResult(result.abortedUploads() + 1,
+                    result.reclaimedBytes() + reclaimed));
+    }
+
+    private Mono<Long> abort(String bucket, MultipartUpload upload, S3Operations operations) {
+        return operations.listAllParts(ListPartsRequest.builder()
+                .bucket(bucket)
+                .key(upload.key())
+                .uploadId(upload.uploadId())
+                .build())
+            .map(Part::size)
+            .reduce(0L, Long::sum)
+            .flatMap(reclaimed -> operations.abortMultipartUpload(
+                    AbortMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(upload.key())
+                        .uploadId(upload.uploadId())
+                        .build())
+                .doOnNext(response -> log.debug("Aborted multipart upload {} of {}.",
+                    upload.uploadId(), upload.key()))
+                .then(deleteSessions(upload.uploadId()))
+                .thenReturn(reclaimed))
+            // completed or aborted meanwhile
+            .onErrorResume(NoSuchUploadException.class, e -> Mono.empty());
+    }
+
+    private Mono<Void> deleteSessions(String uploadId) {
+        return client.list(UploadSession.class,
+                session -> Objects.equals(uploadId, session.getSpec().getUploadId()),
+                Comparator.naturalOrder())
+            .concatMap(client::delete)
+            .then();
+    }
+
+    /**
+     * The part of the location before the first placeholder, as placeholders resolve to
+     * different values over time.
+     *
+     * @return the prefix, or null if the location is empty or starts with a placeholder
+     */
+    static String locationPrefix(String location) {
+        if (!StringUtils.hasText(location)) {
+            return null;
+        }
+        var placeholder = location.indexOf("${");
+        var prefix = placeholder < 0 ? location + "/" : location.substring(0, placeholder);
+        return prefix.isEmpty() ? null : prefix;
+    }
+
+    record ReapResult(int abortedUploads, long reclaimedBytes) {
+    }
+}
@@ -0,0 +1,233 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.lang.Nullable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Assembles incoming data buffers into parts of the given sizes.
+ * <p>
+ * Bytes are bulk-copied from the incoming buffers straight into the part buffer, so every byte is
+ * copied exactly once. Emitted parts are flipped, i.e. ready to be read from position 0 to limit.
+ * Incoming buffers are released as soon as they are consumed. Part buffers come from the given
+ * allocator, or from a {@link PartBufferPool.Reservation}, which may make the assembler wait. While
+ * it waits, no more content is requested, so the client is held back. An optional
+ * {@link Listener} sees the bytes right after they are copied, e.g. to compute checksums in the
+ * same pass. Taking a part buffer is recorded as {@link PartBufferEvent}.
+ */
+final class PartAssembler {
+
+    private final IntUnaryOperator partSizes;
+
+    private final IntFunction<Mono<ByteBuffer>> allocator;
+
+    @Nullable
+    private final Listener listener;
+
+    private int partCount;
+
+    private ByteBuffer current;
+
+    PartAssembler(int partSize) {
+        this(partNumber -> partSize, (size) -> Mono.just(ByteBuffer.allocate(size)), null);
+    }
+
+    PartAssembler(IntUnaryOperator partSizes, IntFunction<Mono<ByteBuffer>> allocator,
+                  @Nullable Listener listener) {
+        this.partSizes = partSizes;
+        this.allocator = allocator;
+        this.listener = listener;
+    }
+
+    /**
+     * Assemble the content into parts of the given size, only the last part may be smaller.
+     *
+     * @param content content to assemble
+     * @param partSize part size in bytes
+     * @return parts
+     */
+    static Flux<ByteBuffer> assemble(Publisher<DataBuffer> content, int partSize) {
+        return assemble(content, partNumber -> partSize, ByteBuffer::allocate, null);
+    }
+
+    /**
+     * Assemble the content into parts, taking part buffers from the allocator. Allocated buffers
+     * must be empty and have room for exactly the requested size.
+     *
+     * @param content content to assemble
+     * @param partSizes size in bytes of the part with the given number, starting from 1
+     * @param allocator allocator of part buffers of the given size
+     * @param listener listener of assembled bytes, may be null
+     * @return parts
+     */
+    static Flux<ByteBuffer> assemble(Publisher<DataBuffer> content, IntUnaryOperator partSizes,
+                                     IntFunction<ByteBuffer> allocator,
+                                     @Nullable Listener listener) {
+        return assembleParts(content, partSizes,
+            (size) -> Mono.fromSupplier(() -> allocator.apply(size)), listener);
+    }
+
+    /**
+     * Assemble the content into parts, taking part buffers from the reservation. Waits for a
+     * buffer while the upload holds all buffers it may hold, or the memory is taken by other
+     * uploads.
+     *
+     * @param content content to assemble
+     * @param partSizes size in bytes of the part with the given number, starting from 1
+     * @param reservation reservation of part buffers
+     * @param listener listener of assembled bytes, may be null
+     * @return parts
+     */
+    static Flux<ByteBuffer> assemble(Publisher<DataBuffer> content, IntUnaryOperator partSizes,
+                                     PartBufferPool.Reservation reservation,
+                                     @Nullable Listener listener) {
+        return assembleParts(content, partSizes, reservation::acquire, listener);
+    }
+
+    private static Flux<ByteBuffer> assembleParts(Publisher<DataBuffer> content,
+                                                  IntUnaryOperator partSizes,
+                                                  IntFunction<Mono<ByteBuffer>> allocator,
+                                                  @Nullable Listener listener) {
+        return Flux.defer(() -> {
+                var assembler = new PartAssembler(partSizes, allocator, listener);
+                return Flux.from(content)
+                    .concatMap(assembler::append)
+                    .concatWith(Mono.fromSupplier(assembler::flush));
+            })
+            .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
+    }
+
+    /**
+     * Copy the readable bytes of the buffer into parts, then release the buffer.
+     *
+     * @param dataBuffer incoming buffer
+     * @return parts completed by this buffer, usually none
+     */
+    Flux<ByteBuffer> append(DataBuffer dataBuffer) {
+        List<ByteBuffer> parts;
+        try {
+            parts = fill(dataBuffer);
+        } catch (RuntimeException e) {
+            DataBufferUtils.release(dataBuffer);
+            throw e;
+        }
+        if (dataBuffer.readableByteCount() == 0) {
+            DataBufferUtils.release(dataBuffer);
+            return parts.isEmpty() ? Flux.empty() : Flux.fromIterable(parts);
+        }
+        // completed parts go first, the next buffer may have to wait until they are sent
+        return Flux.using(() -> dataBuffer,
+            (buffer) -> Flux.fromIterable(parts).concatWith(fillNextParts(buffer)),
+            DataBufferUtils::release);
+    }
+
+    private Flux<ByteBuffer> fillNextParts(DataBuffer dataBuffer) {
+        return Mono.defer(() -> allocate(partSizes.applyAsInt(++partCount)))
+            .flatMapMany((buffer) -> {
+                current = buffer;
+                var parts = fill(dataBuffer);
+                return dataBuffer.readableByteCount() == 0 ? Flux.fromIterable(parts)
+                    : Flux.fromIterable(parts).concatWith(fillNextParts(dataBuffer));
+            });
+    }
+
+    /**
+     * Copy bytes of the buffer into the current part until the buffer is empty, or a new part
+     * buffer is needed.
+     *
+     * @return parts completed meanwhile
+     */
+    private List<ByteBuffer> fill(DataBuffer dataBuffer) {
+        List<ByteBuffer> parts = List.of();
+        var remaining = dataBuffer.readableByteCount();
+        while (remaining > 0 && current != null) {
+            var length = Math.min(remaining, current.remaining());
+            var readPosition = dataBuffer.readPosition();
+            var position = current.position();
+            dataBuffer.toByteBuffer(readPosition, current, position, length);
+            dataBuffer.readPosition(readPosition + length);
+            current.position(position + length);
+            if (listener != null) {
+                listener.appended(current.slice(position, length));
+            }
+            remaining -= length;
+            if (!current.hasRemaining()) {
+                if (parts.isEmpty()) {
+                    parts = new ArrayList<>(1);
+                }
+                parts.add(complete());
+            }
+        }
+        return parts;
+    }
+
+    private Mono<ByteBuffer> allocate(int partSize) {
+        if (partSize <= 0) {
+            return Mono.error(new IllegalArgumentException("Part size must be positive."));
+        }
+        if (!PartBufferEvent.EVENT_TYPE.isEnabled()) {
+            return allocator.apply(partSize);
+        }
+        var event = new PartBufferEvent();
+        event.begin();
+        return allocator.apply(partSize)
+            .doOnNext((buffer) -> {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.size = partSize;
+                    event.direct = buffer.isDirect();
+                    event.commit();
+                }
+            });
+    }
+
+    /**
+     * Take the last, partially filled part.
+     *
+     * @return the last part or null if there is nothing left
+     */
+    @Nullable
+    ByteBuffer flush() {
+        if (current == null || current.position() == 0) {
+            return null;
+        }
+        return complete();
+    }
+
+    private ByteBuffer complete() {
+        var part = current.flip();
+        current = null;
+        if (listener != null) {
+            listener.completed(part);
+        }
+        return part;
+    }
+
+    /**
+     * Listener of the bytes copied into parts. Called on the thread assembling the parts.
+     */
+    interface Listener {
+
+        /**
+         * Bytes were copied into the current part.
+         *
+         * @param bytes view of the copied bytes, only valid during the call
+         */
+        void appended(ByteBuffer bytes);
+
+        /**
+         * The part is complete and about to be emitted.
+         *
+         * @param part the part, ready to be read
+         */
+        void completed(ByteBuffer part);
+    }
+}
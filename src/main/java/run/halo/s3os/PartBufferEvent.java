@@ -0,0 +1,30 @@
+package run.halo.s3os;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event of taking a part buffer while assembling parts, see
+ * {@link PartAssembler}. A long duration means the upload waited for memory of the upload budget,
+ * or a fresh direct buffer was allocated.
+ */
+@Name("run.halo.s3os.PartBuffer")
+@Label("Part Buffer")
+@Category({"Halo", "S3"})
+@Description("A buffer taken for the next part of an upload.")
+final class PartBufferEvent extends Event {
+
+    static final EventType EVENT_TYPE = EventType.getEventType(PartBufferEvent.class);
+
+    @Label("Size")
+    @DataAmount
+    int size;
+
+    @Label("Direct")
+    boolean direct;
+}
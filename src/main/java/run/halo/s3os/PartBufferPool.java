@@ -0,0 +1,521 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+
+/**
+ * Pool of direct part buffers shared by all uploads, limited by a global memory budget.
+ * <p>
+ * An upload first reserves memory for one part, which is all a small file needs, and expands the
+ * reservation once it turns out to need more parts. When the budget is used up, new reservations
+ * wait until other uploads finish, so the body is not consumed and the client is held back instead
+ * of the heap growing. Expansions are served before new reservations, and new reservations leave
+ * room for one more part, so that uploads already running can always go on.
+ * <p>
+ * Running uploads take part buffers from their reservation. Taking one waits while the upload
+ * holds as many buffers as it reserved, or the memory is taken by buffers of other uploads, until
+ * buffers are released. Part buffers are never allocated on the heap instead.
+ * <p>
+ * Released buffers are kept for the next upload. They count against the same budget as the buffers
+ * in use and are dropped when a new buffer needs their memory.
+ */
+@Slf4j
+@Component
+public class PartBufferPool {
+
+    static final String SETTING_GROUP = "upload";
+
+    static final int DEFAULT_MEMORY_BUDGET_MB = 256;
+
+    /**
+     * Every multipart upload needs a buffer to fill and one to send.
+     */
+    static final int MIN_PARTS = 2;
+
+    /**
+     * How much larger than the part an idle buffer taken for it may be.
+     */
+    static final int MAX_WASTE_FACTOR = 2;
+
+    private final ReactiveSettingFetcher settingFetcher;
+
+    private long budget = DEFAULT_MEMORY_BUDGET_MB * 1024L * 1024L;
+
+    /**
+     * Bytes reserved by open reservations.
+     */
+    private long reserved;
+
+    /**
+     * Bytes of direct buffers held by open reservations.
+     */
+    private long inUse;
+
+    private long idleBytes;
+
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+    private final Deque<Waiter> expansions = new ArrayDeque<>();
+
+    /**
+     * Reservations waiting for a part buffer, each waits for at most one.
+     */
+    private final Deque<Reservation> buffersWanted = new ArrayDeque<>();
+
+    /**
+     * Released buffers, key is the buffer capacity.
+     */
+    private final NavigableMap<Integer, Deque<ByteBuffer>> idleBuffers = new TreeMap<>();
+
+    public PartBufferPool(ReactiveSettingFetcher settingFetcher) {
+        this.settingFetcher = settingFetcher;
+    }
+
+    /**
+     * Reserve memory for the given number of parts, waiting until the budget allows it. If the
+     * budget cannot hold that many parts, fewer parts are granted, but never less than
+     * {@link #MIN_PARTS}. The reservation must be closed after the upload.
+     *
+     * @param partSize part size in bytes
+     * @param parts number of parts the upload wants to hold at the same time
+     * @return reservation of part buffers
+     */
+    public Mono<Reservation> reserve(int partSize, int parts) {
+        return fetchBudget().then(Mono.create(sink -> submit(
+            new Waiter(partSize, grantableParts(partSize, parts), false, sink))));
+    }
+
+    /**
+     * Reserve memory for the first part of an upload, waiting until the budget allows it. The
+     * reservation is expanded with {@link Reservation#expand(int)} once the upload needs more
+     * parts. The reservation must be closed after the upload.
+     *
+     * @param partSize part size in bytes
+     * @return reservation of one part buffer
+     */
+    public Mono<Reservation> reserve(int partSize) {
+        return fetchBudget().then(Mono.create(sink -> submit(
+            new Waiter(partSize, 1, true, sink))));
+    }
+
+    private Mono<Void> fetchBudget() {
+        return settingFetcher.fetch(SETTING_GROUP, UploadSettings.class)
+            .map(UploadSettings::getMemoryBudget)
+            .defaultIfEmpty(DEFAULT_MEMORY_BUDGET_MB)
+            .onErrorReturn(DEFAULT_MEMORY_BUDGET_MB)
+            .doOnNext(budgetMb -> setBudget(budgetMb * 1024L * 1024L))
+            .then();
+    }
+
+    void setBudget(long budget) {
+        synchronized (this) {
+            if (budget <= 0 || this.budget == budget) {
+                return;
+            }
+            this.budget = budget;
+            trimIdleBuffers(0);
+        }
+        grantWaiters();
+    }
+
+    private synchronized int grantableParts(int partSize, int parts) {
+        return (int) Math.max(MIN_PARTS, Math.min(parts, budget / partSize));
+    }
+
+    synchronized long available() {
+        return budget - reserved;
+    }
+
+    synchronized long idleBytes() {
+        return idleBytes;
+    }
+
+    private void submit(Waiter waiter) {
+        waiter.sink.onCancel(() -> cancel(waiter));
+        synchronized (this) {
+            (waiter.expansion ? expansions : waiters).addLast(waiter);
+        }
+        grantWaiters();
+    }
+
+    private void cancel(Waiter waiter) {
+        Reservation reservation;
+        synchronized (this) {
+            if (waiter.expansion) {
+                // parts granted already stay with the reservation
+                expansions.remove(waiter);
+                return;
+            }
+            waiters.remove(waiter);
+            reservation = waiter.reservation;
+        }
+        // granted but never delivered
+        if (reservation != null) {
+            reservation.close();
+        }
+        grantWaiters();
+    }
+
+    private void grantWaiters() {
+        List<Waiter> granted = new ArrayList<>();
+        List<Reservation> supplied = new ArrayList<>();
+        synchronized (this) {
+            while (!expansions.isEmpty()) {
+                var waiter = expansions.peekFirst();
+                var reservation = waiter.reservation;
+                var parts = reservation.closed ? 0 : (int) Math.max(0,
+                    Math.min(waiter.parts - reservation.parts,
+                        (budget - reserved) / reservation.partSize));
+                // an upload holding a buffer to fill and one to send can go on with what it has,
+                // so can an upload running alone, sending one part after the other
+                if (parts == 0 && !reservation.closed && reservation.parts < MIN_PARTS
+                    && waiter.parts > reservation.parts && reservation.others() > 0) {
+                    break;
+                }
+                expansions.removeFirst();
+                reservation.parts += parts;
+                reserved += (long) parts * reservation.partSize;
+                granted.add(waiter);
+            }
+            // running uploads before new ones, any released buffer may serve a waiting upload
+            var wanted = buffersWanted.iterator();
+            while (wanted.hasNext()) {
+                var reservation = wanted.next();
+                reservation.granted = reservation.closed ? null
+                    : reservation.tryAcquire(reservation.wantedSize);
+                if (reservation.closed || reservation.granted != null) {
+                    wanted.remove();
+                    supplied.add(reservation);
+                }
+            }
+            while (expansions.isEmpty() && !waiters.isEmpty()) {
+                var waiter = waiters.peekFirst();
+                var bytes = waiter.bytes();
+                var room = waiter.expandable ? waiter.partSize : 0;
+                // an upload larger than the whole budget may still run alone
+                if (reserved > 0 && reserved + bytes + room > budget) {
+                    break;
+                }
+                waiters.removeFirst();
+                reserved += bytes;
+                waiter.reservation = new Reservation(waiter.partSize, waiter.parts);
+                granted.add(waiter);
+            }
+        }
+        granted.forEach(waiter -> waiter.sink.success(waiter.reservation));
+        supplied.forEach(Reservation::supply);
+    }
+
+    /**
+     * Take the smallest idle buffer that holds the size, limited to the size, as long as it is at
+     * most {@link #MAX_WASTE_FACTOR} times larger. Part sizes vary with the content length and
+     * grow for very large files, this lets buffers of neighbouring sizes be reused.
+     */
+    private ByteBuffer takeIdleBuffer(int size) {
+        var entry = idleBuffers.ceilingEntry(size);
+        if (entry == null || entry.getKey() > (long) size * MAX_WASTE_FACTOR) {
+            return null;
+        }
+        var buffer = entry.getValue().pollFirst();
+        if (entry.getValue().isEmpty()) {
+            idleBuffers.remove(entry.getKey());
+        }
+        idleBytes -= buffer.capacity();
+        return buffer.limit(size);
+    }
+
+    private void putIdleBuffer(ByteBuffer buffer) {
+        if (inUse + idleBytes + buffer.capacity() > budget) {
+            return;
+        }
+        idleBuffers.computeIfAbsent(buffer.capacity(), capacity -> new ArrayDeque<>())
+            .addFirst(buffer.clear());
+        idleBytes += buffer.capacity();
+    }
+
+    /**
+     * Drop idle buffers until buffers in use, idle buffers and the given number of bytes fit into
+     * the budget.
+     *
+     * @return whether they fit
+     */
+    private boolean trimIdleBuffers(long needed) {
+        var iterator = idleBuffers.values().iterator();
+        while (inUse + idleBytes + needed > budget && iterator.hasNext()) {
+            var buffers = iterator.next();
+            while (inUse + idleBytes + needed > budget && !buffers.isEmpty()) {
+                idleBytes -= buffers.removeLast().capacity();
+            }
+            if (buffers.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        return inUse + idleBytes + needed <= budget;
+    }
+
+    /**
+     * Part buffers reserved by one upload. Its state is guarded by the pool.
+     */
+    public class Reservation implements AutoCloseable {
+        private int partSize;
+        private int parts;
+        private int outstanding;
+        /**
+         * Bytes of direct buffers taken and not yet released.
+         */
+        private long held;
+        private boolean closed;
+        /**
+         * Size and sink of the buffer the upload waits for, sink is null if it does not wait.
+         */
+        private int wantedSize;
+        private MonoSink<ByteBuffer> wantedSink;
+        /**
+         * Buffer granted to the waiting upload, yet to be handed over.
+         */
+        private Grant granted;
+
+        Reservation(int partSize, int parts) {
+            this.partSize = partSize;
+            this.parts = parts;
+        }
+
+        public int partSize() {
+            synchronized (PartBufferPool.this) {
+                return partSize;
+            }
+        }
+
+        /**
+         * Number of parts the upload may hold at the same time.
+         */
+        public int parts() {
+            synchronized (PartBufferPool.this) {
+                return parts;
+            }
+        }
+
+        /**
+         * Expand the reservation to the given number of parts. Waits while the upload holds fewer
+         * than {@link #MIN_PARTS} parts and the budget has no room for another one, otherwise
+         * takes as many parts as the budget allows right away.
+         *
+         * @param parts number of parts the upload wants to hold at the same time
+         * @return this reservation
+         */
+        public Mono<Reservation> expand(int parts) {
+            return Mono.create(sink -> {
+                var waiter = new Waiter(0, parts, false, sink);
+                waiter.expansion = true;
+                waiter.reservation = this;
+                submit(waiter);
+            });
+        }
+
+        /**
+         * Take an empty buffer of the given size. A size above the reserved part size grows the
+         * reservation as far as the budget allows, as parts only grow for very large uploads. An
+         * upload holding a single part takes a second one without waiting if the budget has room,
+         * to fill it while the first is sent. Waits while the upload holds as many buffers as it
+         * reserved, or the memory is taken by buffers of other uploads. Only one buffer may be
+         * waited for at a time.
+         *
+         * @param size size of the part in bytes
+         * @return empty buffer with room for exactly the size
+         */
+        public Mono<ByteBuffer> acquire(int size) {
+            return Mono.create(sink -> {
+                sink.onCancel(this::cancelWanted);
+                Grant grant;
+                synchronized (PartBufferPool.this) {
+                    if (wantedSink != null) {
+                        sink.error(new IllegalStateException("Already waiting for a buffer."));
+                        return;
+                    }
+                    // the upload is over, the buffer is only filled to be thrown away
+                    grant = closed ? new Grant(ByteBuffer.allocate(size), size) : tryAcquire(size);
+                    if (grant == null) {
+                        wantedSize = size;
+                        wantedSink = sink;
+                        buffersWanted.addLast(this);
+                        log.debug("Upload waits for a part buffer of {} bytes.", size);
+                        return;
+                    }
+                }
+                sink.success(grant.buffer());
+            });
+        }
+
+        /**
+         * Take a buffer if the upload may hold another one and the memory is free.
+         *
+         * @return the buffer to hand over, or null if the upload has to wait
+         */
+        private Grant tryAcquire(int size) {
+            if (size > partSize) {
+                grow(size);
+            }
+            // an upload larger than the whole budget may still run alone, one part at a time
+            if (outstanding >= parts && parts < MIN_PARTS
+                && (reserved + partSize <= budget || parts == 0 && others() == 0)) {
+                parts++;
+                reserved += partSize;
+            }
+            if (outstanding >= parts) {
+                return null;
+            }
+            var buffer = takeIdleBuffer(size);
+            if (buffer == null && !trimIdleBuffers(size) && inUse > 0) {
+                return null;
+            }
+            var capacity = buffer != null ? buffer.capacity() : size;
+            outstanding++;
+            held += capacity;
+            inUse += capacity;
+            return new Grant(buffer, size);
+        }
+
+        /**
+         * Hand the granted buffer over to the waiting upload, outside the pool lock.
+         */
+        private void supply() {
+            MonoSink<ByteBuffer> sink;
+            Grant grant;
+            int size;
+            synchronized (PartBufferPool.this) {
+                sink = wantedSink;
+                grant = granted;
+                size = wantedSize;
+                wantedSink = null;
+                granted = null;
+            }
+            if (sink == null) {
+                return;
+            }
+            // the upload is over if nothing was granted
+            sink.success(grant != null ? grant.buffer() : ByteBuffer.allocate(size));
+        }
+
+        private void cancelWanted() {
+            synchronized (PartBufferPool.this) {
+                if (buffersWanted.remove(this)) {
+                    wantedSink = null;
+                }
+            }
+        }
+
+        /**
+         * Bytes reserved by other reservations.
+         */
+        private long others() {
+            return reserved - (long) partSize * parts;
+        }
+
+        /**
+         * Give a buffer back once nobody reads it anymore. Buffers that may still be read, e.g.
+         * by a cancelled request, must not be released.
+         */
+        public void release(ByteBuffer buffer) {
+            if (!buffer.isDirect()) {
+                return;
+            }
+            synchronized (PartBufferPool.this) {
+                // accounted for when the reservation was closed
+                if (closed) {
+                    return;
+                }
+                outstanding--;
+                held -= buffer.capacity();
+                inUse -= buffer.capacity();
+                putIdleBuffer(buffer);
+                if (buffersWanted.isEmpty()) {
+                    return;
+                }
+            }
+            grantWaiters();
+        }
+
+        /**
+         * Keep the parts if the budget allows the larger size, otherwise hold as many larger parts
+         * as fit, possibly none.
+         */
+        private void grow(int newPartSize) {
+            var others = others();
+            if (others > 0) {
+                parts = (int) Math.min(parts, Math.max(0, (budget - others) / newPartSize));
+            }
+            reserved = others + (long) newPartSize * parts;
+            partSize = newPartSize;
+        }
+
+        @Override
+        public void close() {
+            synchronized (PartBufferPool.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                reserved -= (long) partSize * parts;
+                // buffers still held, e.g. by cancelled requests, are left to the garbage collector
+                inUse -= held;
+                held = 0;
+            }
+            grantWaiters();
+        }
+    }
+
+    /**
+     * Part buffer granted to an upload, an idle one or a new one of the size.
+     */
+    record Grant(ByteBuffer idle, int size) {
+
+        ByteBuffer buffer() {
+            return idle != null ? idle : ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    static final class Waiter {
+        final int partSize;
+        /**
+         * Number of parts to reserve, or to expand the reservation to.
+         */
+        final int parts;
+        /**
+         * Whether the reservation may be expanded later, so room for another part is left.
+         */
+        final boolean expandable;
+        final MonoSink<Reservation> sink;
+        boolean expansion;
+        Reservation reservation;
+
+        Waiter(int partSize, int parts, boolean expandable, MonoSink<Reservation> sink) {
+            this.partSize = partSize;
+            this.parts = parts;
+            this.expandable = expandable;
+            this.sink = sink;
+        }
+
+        long bytes() {
+            return (long) partSize * parts;
+        }
+    }
+
+    @Data
+    public static class UploadSettings {
+        /**
+         * 上传缓冲区内存总量，单位 MB
+         */
+        private Integer memoryBudget = DEFAULT_MEMORY_BUDGET_MB;
+    }
+}
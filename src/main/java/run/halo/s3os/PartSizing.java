@@ -0,0 +1,59 @@
+package run.halo.s3os;
+
+/**
+ * Part sizes of one multipart upload.
+ * <p>
+ * If the content length is known, every part has the same size: the target size of the policy,
+ * or larger if the file would need more than {@link #MAX_PARTS} parts otherwise. If the content
+ * length is unknown, parts start at the target size and double every {@link #GROWTH_INTERVAL}
+ * parts, so that large files still fit into the part limit of S3.
+ * <p>
+ * Uploads from browsers are {@code multipart/form-data}, whose file parts carry no content length
+ * of their own, so growing part sizes are the usual case. The content length of the whole request
+ * is not available to attachment handlers. {@link PartBufferPool} lends idle buffers of up to twice
+ * the part size, so buffers are reused across part sizes.
+ *
+ * @param initialPartSize size of the first part in bytes
+ * @param growing whether parts grow with the part number
+ */
+record PartSizing(int initialPartSize, boolean growing) {
+
+    static final int MAX_PARTS = 10_000;
+
+    static final int GROWTH_INTERVAL = 1_000;
+
+    static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+
+    private static final int MIB = 1024 * 1024;
+
+    /**
+     * Choose part sizes for the content.
+     *
+     * @param contentLength declared content length, negative if unknown
+     * @param targetPartSize preferred part size in bytes
+     * @return part sizes
+     */
+    static PartSizing of(long contentLength, int targetPartSize) {
+        if (contentLength < 0) {
+            return new PartSizing(targetPartSize, true);
+        }
+        var partSize = Math.max(targetPartSize, Math.ceilDiv(contentLength, MAX_PARTS));
+        // whole MiBs are friendlier to the buffer pool
+        partSize = Math.ceilDiv(partSize, MIB) * MIB;
+        return new PartSizing((int) Math.min(partSize, MAX_PART_SIZE), false);
+    }
+
+    /**
+     * Size of the part with the given number, only the last part may be smaller.
+     *
+     * @param partNumber part number starting from 1
+     * @return part size in bytes
+     */
+    int partSize(int partNumber) {
+        if (!growing) {
+            return initialPartSize;
+        }
+        var doublings = Math.min((partNumber - 1) / GROWTH_INTERVAL, 30);
+        return (int) Math.min((long) initialPartSize << doublings, MAX_PART_SIZE);
+    }
+}
@@ -0,0 +1,189 @@
+package run.halo.s3os;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Stages parts of very large uploads in local temp files, so they do not hold memory while being
+ * sent and can be sent again if a request fails.
+ * <p>
+ * The disk space used per staging directory is limited by the policy. Staged files are deleted
+ * once their part has been sent; files left behind, e.g. by a crash, are deleted when they are
+ * older than the age configured by the policy.
+ */
+@Slf4j
+@Component
+public class PartStager {
+
+    static final String FILE_PREFIX = "s3os-";
+
+    static final String FILE_SUFFIX = ".part";
+
+    static final Duration CLEANUP_INTERVAL = Duration.ofMinutes(10);
+
+    private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+
+    /**
+     * Write the part into a temp file in the staging directory of the policy.
+     *
+     * @param properties policy properties
+     * @param part part content from position to limit, which is not modified
+     * @return staged part, or empty if the staging directory has no room left for it
+     */
+    public Mono<StagedPart> stage(S3OsProperties properties, ByteBuffer part) {
+        return Mono.fromCallable(() -> {
+                var directory = directories.computeIfAbsent(resolveDirectory(properties),
+                    Directory::new);
+                directory.cleanupIfDue(Duration.ofHours(properties.getSpillFileMaxAge()));
+                var size = part.remaining();
+                if (!directory.reserve(size, properties.getSpillMaxSize() * 1024L * 1024L)) {
+                    log.debug("Staging directory {} is full, keeping part in memory.",
+                        directory.path);
+                    return null;
+                }
+                try {
+                    return new StagedPart(directory, write(directory.path, part), size);
+                } catch (IOException e) {
+                    directory.unreserve(size);
+                    throw e;
+                }
+            })
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    static Path resolveDirectory(S3OsProperties properties) {
+        if (StringUtils.hasText(properties.getSpillDirectory())) {
+            return Path.of(properties.getSpillDirectory());
+        }
+        return Path.of(System.getProperty("java.io.tmpdir"), "halo-s3os");
+    }
+
+    private static Path write(Path directory, ByteBuffer part) throws IOException {
+        Files.createDirectories(directory);
+        var file = Files.createTempFile(directory, FILE_PREFIX, FILE_SUFFIX);
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            var content = part.duplicate();
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+    long usedSpace(Path directory) {
+        var entry = directories.get(directory);
+        return entry == null ? 0 : entry.used.get();
+    }
+
+    static final class Directory {
+        final Path path;
+        final AtomicLong used = new AtomicLong();
+        private Instant lastCleanup = Instant.MIN;
+
+        Directory(Path path) {
+            this.path = path;
+        }
+
+        boolean reserve(long size, long limit) {
+            var current = used.get();
+            while (current + size <= limit) {
+                if (used.compareAndSet(current, current + size)) {
+                    return true;
+                }
+                current = used.get();
+            }
+            return false;
+        }
+
+        void unreserve(long size) {
+            used.addAndGet(-size);
+        }
+
+        synchronized void cleanupIfDue(Duration maxAge) {
+            var now = Instant.now();
+            if (lastCleanup.plus(CLEANUP_INTERVAL).isAfter(now) || !Files.isDirectory(path)) {
+                return;
+            }
+            lastCleanup = now;
+            var expiredBefore = now.minus(maxAge);
+            try (var files = Files.list(path)) {
+                files.filter(file -> {
+                        var name = file.getFileName().toString();
+                        return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+                    })
+                    .filter(file -> {
+                        try {
+                            return Files.getLastModifiedTime(file).toInstant()
+                                .isBefore(expiredBefore);
+                        } catch (IOException e) {
+                            return false;
+                        }
+                    })
+                    .forEach(file -> {
+                        try {
+                            Files.deleteIfExists(file);
+                            log.info("Deleted expired staged part {}.", file);
+                        } catch (IOException e) {
+                            log.warn("Failed to delete expired staged part {}.", file, e);
+                        }
+                    });
+            } catch (IOException e) {
+                log.warn("Failed to clean up staging directory {}.", path, e);
+            }
+        }
+    }
+
+    /**
+     * A part written to a temp file. Delete it once it is no longer needed.
+     */
+    public static final class StagedPart {
+        private final Directory directory;
+        private final Path file;
+        private final long size;
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        StagedPart(Directory directory, Path file, long size) {
+            this.directory = directory;
+            this.file = file;
+            this.size = size;
+        }
+
+        public Path file() {
+            return file;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public void delete() {
+            if (!deleted.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Failed to delete staged part {}.", file, e);
+            }
+            directory.unreserve(size);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package run.halo.s3os;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import lombok.experimental.UtilityClass;
 import org.apache.commons.lang3.RandomStringUtils;
@@ -13,34 +18,53 @@ import org.springframework.util.PropertyPlaceholderHelper;
 
 @UtilityClass
 public class PlaceholderReplacer {
-    record PlaceholderFunctionInput(String[] placeholderParams,
-                                    Map<String, String> reusableParams) {
+    /**
+     * Input of a placeholder function.
+     *
+     * @param placeholderParams parameters after the placeholder name, separated by ":"
+     * @param filename the filename without extension
+     * @param time the time of the replacement, the same for all placeholders of a template
+     */
+    record PlaceholderFunctionInput(String[] placeholderParams, String filename,
+                                    LocalDateTime time) {
     }
+
     private static final PropertyPlaceholderHelper helper = new PropertyPlaceholderHelper("${", "}");
 
     private static final Map<String, Function<PlaceholderFunctionInput, String>>
         placeholderFunctions = new HashMap<>();
 
+    private static final int TEMPLATE_CACHE_SIZE = 256;
+
+    /**
+     * Compiled templates keyed by template string.
+     */
+    private static final Cache<String, Template> templates = CacheBuilder.newBuilder()
+        .maximumSize(TEMPLATE_CACHE_SIZE)
+        .build();
+
     static {
         initializePlaceholderFunctions();
     }
 
     private static void initializePlaceholderFunctions() {
-        placeholderFunctions.put("origin-filename", input -> input.reusableParams.get("filename"));
+        placeholderFunctions.put("origin-filename", PlaceholderFunctionInput::filename);
         placeholderFunctions.put("uuid-with-dash", input -> generateUUIDWithDash());
         placeholderFunctions.put("uuid-no-dash", input -> generateUUIDWithoutDash());
         placeholderFunctions.put("timestamp-sec",
-            input -> currentSecondsTimestamp(input.reusableParams));
+            input -> currentSecondsTimestamp(input.time));
         placeholderFunctions.put("timestamp-ms",
-            input -> currentMillisecondsTimestamp(input.reusableParams));
-        placeholderFunctions.put("year", input -> currentYear(input.reusableParams));
-        placeholderFunctions.put("month", input -> currentMonth(input.reusableParams));
-        placeholderFunctions.put("day", input -> currentDay(input.reusableParams));
-        placeholderFunctions.put("weekday", input -> currentWeekday(input.reusableParams));
-        placeholderFunctions.put("hour", input -> currentHour(input.reusableParams));
-        placeholderFunctions.put("minute", input -> currentMinute(input.reusableParams));
-        placeholderFunctions.put("second", input -> currentSecond(input.reusableParams));
-        placeholderFunctions.put("millisecond", input -> currentMillisecond(input.reusableParams));
+            input -> currentMillisecondsTimestamp(input.time));
+        placeholderFunctions.put("year", input -> String.valueOf(input.time.getYear()));
+        placeholderFunctions.put("month", input -> pad(input.time.getMonthValue(), 2));
+        placeholderFunctions.put("day", input -> pad(input.time.getDayOfMonth(), 2));
+        placeholderFunctions.put("weekday",
+            input -> String.valueOf(input.time.getDayOfWeek().getValue()));
+        placeholderFunctions.put("hour", input -> pad(input.time.getHour(), 2));
+        placeholderFunctions.put("minute", input -> pad(input.time.getMinute(), 2));
+        placeholderFunctions.put("second", input -> pad(input.time.getSecond(), 2));
+        placeholderFunctions.put("millisecond",
+            input -> pad(input.time.getNano() / 1_000_000, 3));
         placeholderFunctions.put("random-alphabetic",
             input -> generateRandomLetter(input.placeholderParams));
         placeholderFunctions.put("random-num",
@@ -67,56 +91,17 @@ public class PlaceholderReplacer {
         }
     }
 
-    private static String currentMillisecond(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%03d", time.getNano() / 1000000);
-    }
-
-    private static String currentSecond(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%02d", time.getSecond());
-    }
-
-    private static String currentMinute(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%02d", time.getMinute());
-    }
-
-    private static String currentHour(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%02d", time.getHour());
-    }
-
-    private static String currentWeekday(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.valueOf(time.getDayOfWeek().getValue());
-    }
-
-    private static String currentDay(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%02d", time.getDayOfMonth());
-    }
-
-    private static String currentMonth(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.format("%02d", time.getMonthValue());
-    }
-
-    private static String currentYear(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.valueOf(time.getYear());
+    private static String pad(int value, int width) {
+        var digits = String.valueOf(value);
+        return digits.length() >= width ? digits : "0".repeat(width - digits.length()) + digits;
     }
 
-    private static String currentMillisecondsTimestamp(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.valueOf(
-            time.toInstant(ZoneOffset.systemDefault().getRules().getOffset(time)).toEpochMilli());
+    private static String currentMillisecondsTimestamp(LocalDateTime time) {
+        return String.valueOf(time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
     }
 
-    private static String currentSecondsTimestamp(Map<String, String> reusableParams) {
-        LocalDateTime time = LocalDateTime.parse(reusableParams.get("time"));
-        return String.valueOf(
-            time.toInstant(ZoneOffset.systemDefault().getRules().getOffset(time)).getEpochSecond());
+    private static String currentSecondsTimestamp(LocalDateTime time) {
+        return String.valueOf(time.atZone(ZoneId.systemDefault()).toEpochSecond());
     }
 
 
@@ -148,16 +133,105 @@ public class PlaceholderReplacer {
         if (StringUtils.isBlank(template)) {
             return filename;
         }
-        Map<String, String> reusableParams = new HashMap<>();
+        Template compiled;
+        try {
+            compiled = templates.get(template, () -> compile(template));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return compiled.apply(filename, LocalDateTime.now());
+    }
 
-        reusableParams.put("filename", filename);
-        reusableParams.put("time", LocalDateTime.now().toString());
+    /**
+     * Split the template into literals and placeholder functions. Unknown or unclosed
+     * placeholders stay in the result as they are.
+     */
+    static Template compile(String template) {
+        var segments = new ArrayList<Segment>();
+        var literal = new StringBuilder();
+        var index = 0;
+        while (index < template.length()) {
+            var start = template.indexOf("${", index);
+            var end = start < 0 ? -1 : template.indexOf('}', start + 2);
+            if (end < 0) {
+                literal.append(template, index, template.length());
+                break;
+            }
+            var placeholder = template.substring(start + 2, end);
+            if (placeholder.contains("{")) {
+                // nested placeholders are rare, leave them to the placeholder helper
+                return new NestedTemplate(template);
+            }
+            literal.append(template, index, start);
+            var parts = placeholder.split(":");
+            var function = placeholderFunctions.get(parts[0]);
+            if (function == null) {
+                literal.append("${").append(placeholder).append('}');
+            } else {
+                if (!literal.isEmpty()) {
+                    segments.add(new Literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                var params = new String[parts.length - 1];
+                System.arraycopy(parts, 1, params, 0, params.length);
+                segments.add(new Placeholder(placeholder, function, params));
+            }
+            index = end + 1;
+        }
+        if (!literal.isEmpty()) {
+            segments.add(new Literal(literal.toString()));
+        }
+        return new CompiledTemplate(List.copyOf(segments));
+    }
+
+    interface Template {
+        String apply(String filename, LocalDateTime time);
+    }
 
-        return helper.replacePlaceholders(template, placeholder -> getPlaceholderValue(placeholder, reusableParams));
+    private sealed interface Segment {
+    }
+
+    private record Literal(String text) implements Segment {
+    }
+
+    private record Placeholder(String source, Function<PlaceholderFunctionInput, String> function,
+                               String[] params) implements Segment {
+    }
+
+    private record CompiledTemplate(List<Segment> segments) implements Template {
+        @Override
+        public String apply(String filename, LocalDateTime time) {
+            var result = new StringBuilder();
+            for (var segment : segments) {
+                switch (segment) {
+                    case Literal literal -> result.append(literal.text());
+                    case Placeholder placeholder -> {
+                        var value = placeholder.function()
+                            .apply(new PlaceholderFunctionInput(placeholder.params(), filename,
+                                time));
+                        if (value == null) {
+                            // keep the original placeholder string
+                            result.append("${").append(placeholder.source()).append('}');
+                        } else {
+                            result.append(value);
+                        }
+                    }
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    private record NestedTemplate(String template) implements Template {
+        @Override
+        public String apply(String filename, LocalDateTime time) {
+            return helper.replacePlaceholders(template,
+                placeholder -> getPlaceholderValue(placeholder, filename, time));
+        }
     }
 
-    private static String getPlaceholderValue(String placeholderWithParam,
-                                              Map<String, String> reusableParams) {
+    private static String getPlaceholderValue(String placeholderWithParam, String filename,
+                                              LocalDateTime time) {
         String[] parts = placeholderWithParam.split(":");
         String placeholder = parts[0];
 
@@ -172,9 +246,9 @@ public class PlaceholderReplacer {
         Function<PlaceholderFunctionInput, String> placeholderFunction =
             placeholderFunctions.get(placeholder);
         if (placeholderFunction != null) {
-            // Call the placeholder function with the provided map
+            // Call the placeholder function with the provided input
             return placeholderFunction.apply(
-                new PlaceholderFunctionInput(placeholderParams, reusableParams));
+                new PlaceholderFunctionInput(placeholderParams, filename, time));
         } else {
             // If placeholder not found, return null to keep the original placeholder string
             return null;
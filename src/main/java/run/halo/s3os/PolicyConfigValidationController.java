@@ -3,6 +3,7 @@ package run.halo.s3os;
 import static run.halo.s3os.S3OsAttachmentHandler.MULTIPART_MIN_PART_SIZE;
 import static run.halo.s3os.S3OsAttachmentHandler.checkResult;
 
+import java.nio.ByteBuffer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.core.io.DefaultResourceLoader;
@@ -13,16 +14,13 @@ import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import run.halo.app.infra.utils.PathUtils;
 import run.halo.app.plugin.ApiVersion;
-import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
-import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
-import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
-import software.amazon.awssdk.utils.SdkAutoCloseable;
 
 @ApiVersion("s3os.halo.run/v1alpha1")
 @RestController
@@ -30,85 +28,55 @@ import software.amazon.awssdk.utils.SdkAutoCloseable;
 @Slf4j
 public class PolicyConfigValidationController {
     private final S3OsAttachmentHandler handler;
+    private final S3ClientPool clientPool;
 
+    /**
+     * Validate the policy config by uploading a test file through multipart upload. With
+     * {@code probe=true}, the endpoint is then probed by {@link EndpointProbe}, sending
+     * {@code probePayloadSize} MB per concurrency level, and the report is returned.
+     */
     @PostMapping("/policies/s3/validation")
-    public Mono<Void> validatePolicyConfig(@RequestBody S3OsProperties properties) {
+    public Mono<EndpointProbe.Report> validatePolicyConfig(
+        @RequestBody S3OsProperties properties,
+        @RequestParam(defaultValue = "false") boolean probe,
+        @RequestParam(defaultValue = "32") int probePayloadSize) {
         var filename = "halo-s3-plugin-test-file-" + System.currentTimeMillis() + ".jpg";
         var content = readImage();
-        return Mono.using(() -> handler.buildS3Client(properties),
-                client -> {
+        return Mono.using(() -> clientPool.acquireDetached(properties),
+                lease -> {
+                    var operations = lease.operations();
                     var uploadState =
                         new S3OsAttachmentHandler.UploadState(properties, filename, false);
+                    uploadState.useChecksums(properties.getChecksumAlgorithm(), true);
 
-                    return handler.checkFileExistsAndRename(uploadState, client)
-                        // init multipart upload
-                        .flatMap(state -> Mono.fromCallable(() -> client.createMultipartUpload(
-                            CreateMultipartUploadRequest.builder()
-                                .bucket(properties.getBucket())
-                                .contentType(state.contentType)
-                                .key(state.objectKey)
-                                .build())))
-                        .doOnNext((response) -> {
-                            checkResult(response, "createMultipartUpload");
-                            uploadState.uploadId = response.uploadId();
-                        })
-                        .thenMany(handler.reshape(content, MULTIPART_MIN_PART_SIZE))
-                        // buffer to part
-                        .windowUntil((buffer) -> {
-                            uploadState.buffered += buffer.readableByteCount();
-                            if (uploadState.buffered >= MULTIPART_MIN_PART_SIZE) {
-                                uploadState.buffered = 0;
-                                return true;
-                            } else {
-                                return false;
-                            }
-                        })
-                        // upload part
-                        .concatMap((window) -> window.collectList().flatMap((bufferList) -> {
-                            var buffer = S3OsAttachmentHandler.concatBuffers(bufferList);
-                            return handler.uploadPart(uploadState, buffer, client);
-                        }))
-                        .reduce(uploadState, (state, completedPart) -> {
-                            state.completedParts.put(completedPart.partNumber(), completedPart);
-                            return state;
-                        })
-                        // complete multipart upload
-                        .flatMap((state) -> Mono.just(client.completeMultipartUpload(
-                            CompleteMultipartUploadRequest
-                                .builder()
+                    return handler.checkFileExistsAndRename(uploadState, operations)
+                        // always go through multipart upload to validate it is supported
+                        .flatMap(state -> handler.multipartUpload(state,
+                            PartAssembler.assemble(content, partNumber -> MULTIPART_MIN_PART_SIZE,
+                                ByteBuffer::allocate, uploadState.checksums), operations))
+                        // get object metadata
+                        .flatMap((state) -> operations.headObject(
+                            HeadObjectRequest.builder()
                                 .bucket(properties.getBucket())
-                                .uploadId(state.uploadId)
-                                .multipartUpload(CompletedMultipartUpload.builder()
-                                    .parts(state.completedParts.values())
-                                    .build())
                                 .key(state.objectKey)
-                                .build())
-                        ))
-                        // get object metadata
-                        .flatMap((response) -> {
-                            checkResult(response, "completeUpload");
-                            return Mono.just(client.headObject(
-                                HeadObjectRequest.builder()
-                                    .bucket(properties.getBucket())
-                                    .key(uploadState.objectKey)
-                                    .build()
-                            ));
-                        })
+                                .build()))
                         // check object metadata
                         .doOnNext((response) -> {
                             checkResult(response, "headObject");
                         })
                         // delete object
-                        .flatMap((response) -> Mono.just(client.deleteObject(
+                        .flatMap((response) -> operations.deleteObject(
                             software.amazon.awssdk.services.s3.model.DeleteObjectRequest.builder()
                                 .bucket(properties.getBucket())
                                 .key(uploadState.objectKey)
-                                .build()
-                        )))
+                                .build()))
                         .doOnNext((response) -> checkResult(response, "deleteObject"))
-                        .then();
+                        .then(probe
+                            ? Mono.defer(() -> new EndpointProbe(properties, operations,
+                                probePayloadSize).run())
+                            : Mono.<EndpointProbe.Report>empty());
                 },
-                SdkAutoCloseable::close)
+                S3ClientPool.Lease::close)
             .onErrorMap(S3ExceptionHandler::map);
     }
 
@@ -0,0 +1,334 @@
+package run.halo.s3os;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+import run.halo.app.extension.ConfigMap;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.checksums.RequestChecksumCalculation;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+/**
+ * Registry of warm S3 clients and {@link S3Presigner}s, one set per policy ConfigMap.
+ * <p>
+ * Clients are keyed by ConfigMap name and rebuilt only when the ConfigMap version changes. All
+ * clients share one HTTP connection pool, so TLS sessions and connections survive between
+ * requests. Clients that stay unused for {@link #IDLE_TIMEOUT} are closed. Requests sent through
+ * {@link Lease#operations()} are timed in {@link S3Metrics}.
+ */
+@Slf4j
+@Component
+public class S3ClientPool implements DisposableBean {
+
+    static final Duration IDLE_TIMEOUT = Duration.ofMinutes(30);
+
+    private static final int MAX_CONNECTIONS = 64;
+
+    private static final Duration CONNECTION_MAX_IDLE_TIME = Duration.ofSeconds(60);
+
+    private final SdkHttpClient httpClient;
+
+    private final S3Metrics metrics;
+
+    /**
+     * Created on first use, as only policies using the async engine need it.
+     */
+    private SdkAsyncHttpClient asyncHttpClient;
+
+    /**
+     * Key is the name of policy ConfigMap.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public S3ClientPool(S3Metrics metrics) {
+        this.httpClient = ApacheHttpClient.builder()
+            .maxConnections(MAX_CONNECTIONS)
+            .connectionMaxIdleTime(CONNECTION_MAX_IDLE_TIME)
+            .build();
+        this.metrics = metrics;
+        metrics.gauge("clients", this, S3ClientPool::size);
+        metrics.gauge("clients.leases", this, S3ClientPool::leases);
+    }
+
+    /**
+     * Acquire the pooled clients of the given policy ConfigMap. The returned lease must be closed
+     * once the clients are no longer used.
+     *
+     * @param configMap policy ConfigMap, used as pool key together with its version
+     * @param properties properties converted from the ConfigMap
+     * @return lease of pooled clients
+     */
+    public Lease acquire(ConfigMap configMap, S3OsProperties properties) {
+        var metadata = configMap.getMetadata();
+        if (metadata == null || metadata.getName() == null || metadata.getVersion() == null) {
+            return acquireDetached(properties);
+        }
+        evictIdle();
+        var version = metadata.getVersion();
+        var entry = entries.compute(metadata.getName(), (name, existing) -> {
+            if (existing != null && existing.retain(version)) {
+                return existing;
+            }
+            if (existing != null) {
+                log.info("Configuration of {} changed, rebuilding S3 client.", name);
+                existing.retire();
+            }
+            var created = new Entry(name, version, properties);
+            created.retain(version);
+            return created;
+        });
+        return new Lease(entry);
+    }
+
+    /**
+     * Acquire clients which are not pooled and get closed together with the lease, e.g. for
+     * validating a configuration that has not been saved yet.
+     *
+     * @param properties S3 properties
+     * @return lease of one-off clients
+     */
+    public Lease acquireDetached(S3OsProperties properties) {
+        var entry = new Entry(null, null, properties);
+        entry.retain(null);
+        entry.retire();
+        return new Lease(entry);
+    }
+
+    S3Client buildS3Client(S3OsProperties properties) {
+        return S3Client.builder()
+            .httpClient(httpClient)
+            .region(Region.of(properties.getRegion()))
+            .endpointOverride(endpoint(properties))
+            .credentialsProvider(credentialsProvider(properties))
+            .serviceConfiguration(serviceConfiguration(properties))
+            // checksums are computed while assembling parts, if the policy wants them
+            .requestChecksumCalculation(RequestChecksumCalculation.WHEN_REQUIRED)
+            .build();
+    }
+
+    S3AsyncClient buildS3AsyncClient(S3OsProperties properties) {
+        return S3AsyncClient.builder()
+            .httpClient(asyncHttpClient())
+            .region(Region.of(properties.getRegion()))
+            .endpointOverride(endpoint(properties))
+            .credentialsProvider(credentialsProvider(properties))
+            .serviceConfiguration(serviceConfiguration(properties))
+            .requestChecksumCalculation(RequestChecksumCalculation.WHEN_REQUIRED)
+            .build();
+    }
+
+    static S3Presigner buildS3Presigner(S3OsProperties properties) {
+        return S3Presigner.builder()
+            .region(Region.of(properties.getRegion()))
+            .endpointOverride(endpoint(properties))
+            .credentialsProvider(credentialsProvider(properties))
+            .serviceConfiguration(serviceConfiguration(properties))
+            .build();
+    }
+
+    private static URI endpoint(S3OsProperties properties) {
+        return URI.create(properties.getEndpointProtocol() + "://" + properties.getEndpoint());
+    }
+
+    private static StaticCredentialsProvider credentialsProvider(S3OsProperties properties) {
+        return StaticCredentialsProvider.create(
+            AwsBasicCredentials.create(properties.getAccessKey(), properties.getAccessSecret()));
+    }
+
+    private static S3Configuration serviceConfiguration(S3OsProperties properties) {
+        return S3Configuration.builder()
+            .chunkedEncodingEnabled(false)
+            .pathStyleAccessEnabled(properties.getEnablePathStyleAccess())
+            .build();
+    }
+
+    private synchronized SdkAsyncHttpClient asyncHttpClient() {
+        if (asyncHttpClient == null) {
+            asyncHttpClient = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(MAX_CONNECTIONS)
+                .connectionMaxIdleTime(CONNECTION_MAX_IDLE_TIME)
+                .build();
+        }
+        return asyncHttpClient;
+    }
+
+    void evictIdle() {
+        var now = System.nanoTime();
+        entries.keySet().forEach(name -> entries.computeIfPresent(name, (key, entry) -> {
+            if (entry.isIdle(now)) {
+                log.debug("Closing idle S3 client of {}.", key);
+                entry.retire();
+                return null;
+            }
+            return entry;
+        }));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int leases() {
+        return entries.values().stream().mapToInt(Entry::references).sum();
+    }
+
+    @Override
+    public void destroy() {
+        entries.values().forEach(Entry::retire);
+        entries.clear();
+        httpClient.close();
+        synchronized (this) {
+            if (asyncHttpClient != null) {
+                asyncHttpClient.close();
+            }
+        }
+    }
+
+    /**
+     * Clients of one ConfigMap version. Each client is created on first use.
+     */
+    final class Entry {
+        /**
+         * Name of the ConfigMap, null if the clients are not pooled.
+         */
+        final String name;
+        final Long version;
+        final S3OsProperties properties;
+        private S3Client client;
+        private S3AsyncClient asyncClient;
+        private S3Presigner presigner;
+        private S3Operations operations;
+        private int references;
+        private boolean retired;
+        private boolean closed;
+        private long lastAccess = System.nanoTime();
+
+        Entry(String name, Long version, S3OsProperties properties) {
+            this.name = name;
+            this.version = version;
+            this.properties = properties;
+        }
+
+        synchronized S3Client client() {
+            if (client == null) {
+                client = buildS3Client(properties);
+            }
+            return client;
+        }
+
+        synchronized S3Presigner presigner() {
+            if (presigner == null) {
+                presigner = buildS3Presigner(properties);
+            }
+            return presigner;
+        }
+
+        synchronized S3Operations operations() {
+            if (operations == null) {
+                if (properties.getClientEngine() == S3OsProperties.ClientEngine.async) {
+                    asyncClient = buildS3AsyncClient(properties);
+                    operations = new AsyncS3Operations(asyncClient);
+                } else {
+                    operations = new BlockingS3Operations(client());
+                }
+                operations = metrics.instrument(operations, name);
+            }
+            return operations;
+        }
+
+        synchronized boolean retain(Long expectedVersion) {
+            if (retired || !Objects.equals(version, expectedVersion)) {
+                return false;
+            }
+            references++;
+            lastAccess = System.nanoTime();
+            return true;
+        }
+
+        synchronized void release() {
+            references--;
+            lastAccess = System.nanoTime();
+            closeIfUnused();
+        }
+
+        synchronized void retire() {
+            retired = true;
+            closeIfUnused();
+        }
+
+        synchronized int references() {
+            return references;
+        }
+
+        synchronized boolean isIdle(long now) {
+            return references == 0 && now - lastAccess > IDLE_TIMEOUT.toNanos();
+        }
+
+        private void closeIfUnused() {
+            if (retired && references == 0 && !closed) {
+                closed = true;
+                if (client != null) {
+                    client.close();
+                }
+                if (asyncClient != null) {
+                    asyncClient.close();
+                }
+                if (presigner != null) {
+                    presigner.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Borrowed clients. Closing the lease returns them to the pool instead of closing them.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public S3Client client() {
+            return entry.client();
+        }
+
+        /**
+         * Operations on the client engine chosen by the policy.
+         */
+        public S3Operations operations() {
+            return entry.operations();
+        }
+
+        /**
+         * The presigner is created on first use, as most policies never need one.
+         */
+        public S3Presigner presigner() {
+            return entry.presigner();
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                entry.release();
+            }
+        }
+    }
+}
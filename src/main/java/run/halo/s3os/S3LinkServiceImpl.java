@@ -24,7 +24,6 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
 import run.halo.app.core.extension.attachment.Attachment;
 import run.halo.app.core.extension.attachment.Policy;
 import run.halo.app.extension.ConfigMap;
@@ -33,7 +32,6 @@ import run.halo.app.extension.MetadataUtil;
 import run.halo.app.extension.ReactiveExtensionClient;
 import run.halo.app.extension.index.query.QueryFactory;
 import run.halo.app.extension.router.selector.FieldSelector;
-import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.S3Object;
@@ -45,6 +43,7 @@ import software.amazon.awssdk.services.s3.model.S3Object;
 public class S3LinkServiceImpl implements S3LinkService {
     private final ReactiveExtensionClient client;
     private final S3OsAttachmentHandler handler;
+    private final S3ClientPool clientPool;
 
     /**
      * Map of linking file, used as a lock, key is policyName/objectKey, value is policyName/objectKey.
@@ -69,18 +68,17 @@ public class S3LinkServiceImpl implements S3LinkService {
             .flatMap((configMap) -> {
                 var properties = S3OsProperties.convertFrom(configMap);
                 var finalLocation = FilePathUtils.getFilePathByPlaceholder(properties.getLocation());
-                return Mono.using(() -> handler.buildS3Client(properties),
+                return Mono.using(() -> clientPool.acquire(configMap, properties),
                         // 执行 listObjects
-                        (s3Client) -> Mono.fromCallable(
-                            () -> s3Client.listObjectsV2(ListObjectsV2Request.builder()
-                                .bucket(properties.getBucket())
-                                .prefix(buildPrefix(finalLocation, filePrefix))
-                                .delimiter("/")
-                                .maxKeys(pageSize)
-                                .continuationToken(StringUtils.isNotEmpty(continuationToken)
-                                    ? continuationToken : null)
-                                .build())).subscribeOn(Schedulers.boundedElastic()),
-                        S3Client::close)
+                        (lease) -> lease.operations().listObjectsV2(ListObjectsV2Request.builder()
+                            .bucket(properties.getBucket())
+                            .prefix(buildPrefix(finalLocation, filePrefix))
+                            .delimiter("/")
+                            .maxKeys(pageSize)
+                            .continuationToken(StringUtils.isNotEmpty(continuationToken)
+                                ? continuationToken : null)
+                            .build()),
+                        S3ClientPool.Lease::close)
                     .flatMap(listObjectsV2Response -> {
                         List<S3Object> contents = listObjectsV2Response.contents();
                         // 过滤掉目录并转换为ObjectVo
@@ -232,17 +230,15 @@ public class S3LinkServiceImpl implements S3LinkService {
             })
             .flatMap(configMap -> {
                 var properties = S3OsProperties.convertFrom(configMap);
-                return Mono.using(() -> handler.buildS3Client(properties),
-                        (s3Client) -> Mono.fromCallable(
-                                () -> s3Client.headObject(
-                                    HeadObjectRequest.builder()
-                                        .bucket(properties.getBucket())
-                                        .key(objectKey)
-                                        .build()))
-                            .subscribeOn(Schedulers.boundedElastic()),
-                        S3Client::close)
+                return Mono.using(() -> clientPool.acquire(configMap, properties),
+                        (lease) -> lease.operations().headObject(
+                            HeadObjectRequest.builder()
+                                .bucket(properties.getBucket())
+                                .key(objectKey)
+                                .build()),
+                        S3ClientPool.Lease::close)
                     .map(headObjectResponse -> {
-                        var objectDetail = new S3OsAttachmentHandler.ObjectDetail(
+                        var objectDetail = S3OsAttachmentHandler.ObjectDetail.from(
                                 new S3OsAttachmentHandler.UploadState(properties,
                                         FileNameUtils.extractFileNameFromS3Key(objectKey), false),
                                 headObjectResponse);
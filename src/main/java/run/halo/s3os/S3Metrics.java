@@ -0,0 +1,169 @@
+package run.halo.s3os;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Meters of this plugin, registered on the meter registry of Halo.
+ * <ul>
+ *     <li>{@code s3os.requests}: timer of S3 requests, tagged by ConfigMap of the policy,
+ *     operation and outcome</li>
+ *     <li>{@code s3os.uploads}: timer of whole uploads, tagged by policy and outcome</li>
+ *     <li>{@code s3os.uploads.size} and {@code s3os.uploads.parts}: size and part count of
+ *     uploaded objects, tagged by policy</li>
+ *     <li>{@code s3os.retries}: retried S3 requests, tagged by policy and operation</li>
+ *     <li>{@code s3os.thumbnails.cache}: lookups of thumbnail patterns, tagged by result</li>
+ *     <li>{@code s3os.clients} and {@code s3os.clients.leases}: pooled clients and leases in
+ *     use</li>
+ * </ul>
+ * The meters are removed when the plugin stops, so the registry keeps no classes of the plugin.
+ */
+@Component
+public class S3Metrics implements DisposableBean {
+
+    static final String PREFIX = "s3os.";
+
+    static final String REQUESTS = PREFIX + "requests";
+
+    static final String UPLOADS = PREFIX + "uploads";
+
+    static final String RETRIES = PREFIX + "retries";
+
+    static final String THUMBNAIL_CACHE = PREFIX + "thumbnails.cache";
+
+    /**
+     * Tag value of meters that belong to no saved policy, e.g. when validating a configuration.
+     */
+    static final String NONE = "none";
+
+    private final MeterRegistry registry;
+
+    @Autowired
+    public S3Metrics(ObjectProvider<MeterRegistry> registry) {
+        this(registry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    S3Metrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Time every request of the operations.
+     *
+     * @param operations operations to time
+     * @param configMapName name of the policy ConfigMap, null if the clients are not pooled
+     * @return timed operations
+     */
+    S3Operations instrument(S3Operations operations, @Nullable String configMapName) {
+        return new MeteredS3Operations(operations, this, tagValue(configMapName));
+    }
+
+    /**
+     * Time an S3 request once the returned {@link Mono} is subscribed.
+     */
+    <T> Mono<T> timeRequest(@Nullable String configMapName, String operation,
+                            Mono<T> request) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return request.doFinally((signalType) -> Timer.builder(REQUESTS)
+                .tags(Tags.of("configMap", tagValue(configMapName), "operation", operation,
+                    "outcome", outcome(signalType)))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    /**
+     * Time a request that is answered locally, such as presigning a URL.
+     */
+    <T> T timeRequest(@Nullable String configMapName, String operation,
+                      Supplier<T> request) {
+        var start = System.nanoTime();
+        var outcome = SignalType.ON_ERROR;
+        try {
+            var result = request.get();
+            outcome = SignalType.ON_COMPLETE;
+            return result;
+        } finally {
+            Timer.builder(REQUESTS)
+                .tags(Tags.of("configMap", tagValue(configMapName), "operation", operation,
+                    "outcome", outcome(outcome)))
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Time a whole upload once the returned {@link Mono} is subscribed.
+     */
+    <T> Mono<T> timeUpload(@Nullable String policyName, Mono<T> upload) {
+        return Mono.defer(() -> {
+            var start = System.nanoTime();
+            return upload.doFinally((signalType) -> Timer.builder(UPLOADS)
+                .tags(Tags.of("policy", tagValue(policyName), "outcome", outcome(signalType)))
+                .register(registry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    void uploaded(@Nullable String policyName, long size, int parts) {
+        var tags = Tags.of("policy", tagValue(policyName));
+        DistributionSummary.builder(UPLOADS + ".size")
+            .baseUnit("bytes")
+            .tags(tags)
+            .register(registry)
+            .record(size);
+        DistributionSummary.builder(UPLOADS + ".parts")
+            .tags(tags)
+            .register(registry)
+            .record(parts);
+    }
+
+    void retried(@Nullable String policyName, String operation) {
+        registry.counter(RETRIES, "policy", tagValue(policyName), "operation", operation)
+            .increment();
+    }
+
+    void thumbnailCache(boolean hit) {
+        registry.counter(THUMBNAIL_CACHE, "result", hit ? "hit" : "miss").increment();
+    }
+
+    <T> void gauge(String name, T object, ToDoubleFunction<T> value) {
+        Gauge.builder(PREFIX + name, object, value).register(registry);
+    }
+
+    static String outcome(SignalType signalType) {
+        return switch (signalType) {
+            case ON_COMPLETE -> "success";
+            case CANCEL -> "cancelled";
+            default -> "error";
+        };
+    }
+
+    private static String tagValue(@Nullable String value) {
+        return value == null ? NONE : value;
+    }
+
+    @Override
+    public void destroy() {
+        registry.getMeters().stream()
+            .filter((meter) -> meter.getId().getName().startsWith(PREFIX))
+            .forEach(registry::remove);
+    }
+}
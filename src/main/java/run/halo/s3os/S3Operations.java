@@ -0,0 +1,121 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * The S3 operations used by this plugin. Every operation is lazy: nothing is sent before the
+ * returned {@link Mono} is subscribed.
+ *
+ * @see BlockingS3Operations
+ * @see AsyncS3Operations
+ */
+public interface S3Operations {
+
+    Mono<HeadObjectResponse> headObject(HeadObjectRequest request);
+
+    /**
+     * Upload an object in a single request.
+     *
+     * @param request request with content length set
+     * @param content object content from position to limit, which is not modified
+     * @return response of the object
+     */
+    Mono<PutObjectResponse> putObject(PutObjectRequest request, ByteBuffer content);
+
+    Mono<CreateMultipartUploadResponse> createMultipartUpload(
+        CreateMultipartUploadRequest request);
+
+    /**
+     * Upload a part.
+     *
+     * @param request request with content length set
+     * @param content part content from position to limit, which is not modified
+     * @return response of the part
+     */
+    Mono<UploadPartResponse> uploadPart(UploadPartRequest request, ByteBuffer content);
+
+    /**
+     * Upload a part staged in a local file. The file is read again on every attempt.
+     *
+     * @param request request with content length set
+     * @param file file holding the whole part
+     * @return response of the part
+     */
+    Mono<UploadPartResponse> uploadPart(UploadPartRequest request, Path file);
+
+    Mono<CompleteMultipartUploadResponse> completeMultipartUpload(
+        CompleteMultipartUploadRequest request);
+
+    Mono<AbortMultipartUploadResponse> abortMultipartUpload(AbortMultipartUploadRequest request);
+
+    Mono<DeleteObjectResponse> deleteObject(DeleteObjectRequest request);
+
+    Mono<ListObjectsV2Response> listObjectsV2(ListObjectsV2Request request);
+
+    Mono<ListPartsResponse> listParts(ListPartsRequest request);
+
+    Mono<ListMultipartUploadsResponse> listMultipartUploads(ListMultipartUploadsRequest request);
+
+    /**
+     * List all parts of a multipart upload, following the pages of {@link #listParts}.
+     *
+     * @param request request of the first page
+     * @return parts ordered by part number
+     */
+    default Flux<Part> listAllParts(ListPartsRequest request) {
+        return listParts(request).flatMapMany(response -> {
+            var parts = Flux.fromIterable(response.parts());
+            if (!Boolean.TRUE.equals(response.isTruncated())) {
+                return parts;
+            }
+            return parts.concatWith(Flux.defer(() -> listAllParts(request.toBuilder()
+                .partNumberMarker(response.nextPartNumberMarker())
+                .build())));
+        });
+    }
+
+    /**
+     * List all in-progress multipart uploads, following the pages of
+     * {@link #listMultipartUploads}.
+     *
+     * @param request request of the first page
+     * @return multipart uploads
+     */
+    default Flux<MultipartUpload> listAllMultipartUploads(ListMultipartUploadsRequest request) {
+        return listMultipartUploads(request).flatMapMany(response -> {
+            var uploads = Flux.fromIterable(response.uploads());
+            if (!Boolean.TRUE.equals(response.isTruncated())) {
+                return uploads;
+            }
+            return uploads.concatWith(Flux.defer(() -> listAllMultipartUploads(request.toBuilder()
+                .keyMarker(response.nextKeyMarker())
+                .uploadIdMarker(response.nextUploadIdMarker())
+                .build())));
+        });
+    }
+}
@@ -1,15 +1,28 @@
 package run.halo.s3os;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.file.FileAlreadyExistsException;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HexFormat;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.pf4j.Extension;
@@ -17,16 +30,19 @@ import org.reactivestreams.Publisher;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
 import org.springframework.http.MediaType;
 import org.springframework.http.MediaTypeFactory;
 import org.springframework.lang.Nullable;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.web.server.ServerErrorException;
 import org.springframework.web.server.ServerWebInputException;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
 import reactor.core.scheduler.Schedulers;
-import reactor.util.context.Context;
 import reactor.util.retry.Retry;
 import run.halo.app.core.extension.attachment.Attachment;
 import run.halo.app.core.extension.attachment.Attachment.AttachmentSpec;
@@ -34,42 +50,71 @@ import run.halo.app.core.extension.attachment.Constant;
 import run.halo.app.core.extension.attachment.Policy;
 import run.halo.app.core.extension.attachment.endpoint.AttachmentHandler;
 import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.ListOptions;
 import run.halo.app.extension.Metadata;
 import run.halo.app.extension.MetadataUtil;
-import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
-import software.amazon.awssdk.awscore.presigner.SdkPresigner;
+import run.halo.app.extension.ReactiveExtensionClient;
+import run.halo.app.extension.index.query.QueryFactory;
+import run.halo.app.extension.router.selector.FieldSelector;
 import software.amazon.awssdk.core.SdkResponse;
-import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.http.SdkHttpResponse;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.*;
-import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
-import software.amazon.awssdk.utils.SdkAutoCloseable;
 
 @Slf4j
 @Extension
+@RequiredArgsConstructor
 public class S3OsAttachmentHandler implements AttachmentHandler {
 
     public static final String OBJECT_KEY = "s3os.plugin.halo.run/object-key";
     public static final String URL_SUFFIX_ANNO_KEY = "s3os.plugin.halo.run/url-suffix";
     public static final String SKIP_REMOTE_DELETION_ANNO = "s3os.plugin.halo.run/skip-remote-deletion";
+    /**
+     * Followed by the checksum algorithm, e.g. {@code s3os.plugin.halo.run/checksum-crc32c}.
+     * The value is the base64 encoded checksum of the whole object.
+     */
+    public static final String CHECKSUM_ANNO_KEY_PREFIX = "s3os.plugin.halo.run/checksum-";
+    /**
+     * SHA-256 hex of the content, set if the policy deduplicates uploads. Other attachments may
+     * share the object.
+     */
+    public static final String CONTENT_HASH_ANNO_KEY = "s3os.plugin.halo.run/content-hash";
     public static final int MULTIPART_MIN_PART_SIZE = 5 * 1024 * 1024;
+    static final int STAGED_PART_RETRIES = 3;
+    static final int MAX_RENAME_ATTEMPTS = 10;
+    static final int SHARED_URL_CACHE_SIZE = 10_000;
 
     /**
      * Map to store uploading file, used as a lock, key is bucket/objectKey, value is bucket/objectKey.
      */
     private final Map<String, Object> uploadingFile = new ConcurrentHashMap<>();
 
+    /**
+     * Recently presigned URLs, handed out again while most of their lifetime remains.
+     */
+    private final Cache<SharedUrlKey, SharedUrl> sharedUrlCache = CacheBuilder.newBuilder()
+        .maximumSize(SHARED_URL_CACHE_SIZE)
+        .build();
+
+    private final S3ClientPool clientPool;
+
+    private final PartBufferPool bufferPool;
+
+    private final PartStager partStager;
+
+    private final ReactiveExtensionClient client;
+
+    private final S3Metrics metrics;
+
     @Override
     public Mono<Attachment> upload(UploadContext uploadContext) {
         return Mono.just(uploadContext).filter(context -> this.shouldHandle(context.policy()))
             .flatMap(context -> {
                 final var properties = S3OsProperties.convertFrom(context.configMap());
-                return upload(context, properties)
-                    .subscribeOn(Schedulers.boundedElastic())
+                return Mono.using(() -> clientPool.acquire(context.configMap(), properties),
+                        lease -> upload(context, properties, lease.operations()),
+                        S3ClientPool.Lease::close)
                     .map(objectDetail -> this.buildAttachment(properties, objectDetail))
                     .onErrorMap(S3ExceptionHandler::map);
             });
@@ -92,28 +137,79 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
                     return Mono.just(context.attachment());
                 }
                 var properties = S3OsProperties.convertFrom(deleteContext.configMap());
-                return Mono.using(
-                        () -> buildS3Client(properties),
-                        client -> Mono.fromCallable(
-                            () -> client.deleteObject(DeleteObjectRequest.builder()
-                                .bucket(properties.getBucket())
-                                .key(objectKey)
-                                .build())),
-                        S3Client::close
-                    )
-                    .subscribeOn(Schedulers.boundedElastic())
-                    .doOnNext(response -> {
-                        checkResult(response, "delete object");
-                        log.info("Delete object {} from bucket {} successfully",
-                            objectKey, properties.getBucket());
-                    })
-                    // ignore when the object does not exist
-                    .onErrorComplete(NoSuchKeyException.class::isInstance)
-                    .onErrorMap(S3ExceptionHandler::map)
-                    .thenReturn(context.attachment());
+                var contentHash = MetadataUtil.nullSafeAnnotations(context.attachment())
+                    .get(CONTENT_HASH_ANNO_KEY);
+                return isShared(context.attachment(), objectKey, contentHash)
+                    .flatMap(shared -> {
+                        if (shared) {
+                            log.info("Skip deleting object {} from S3, other attachments still "
+                                + "use it.", objectKey);
+                            return Mono.just(context.attachment());
+                        }
+                        return deleteObject(deleteContext, properties, objectKey)
+                            .then(deleteContentObject(contentHash,
+                                context.attachment().getSpec().getPolicyName()))
+                            .thenReturn(context.attachment());
+                    });
             });
     }
 
+    private Mono<Void> deleteObject(DeleteContext deleteContext, S3OsProperties properties,
+                                    String objectKey) {
+        return Mono.using(
+                () -> clientPool.acquire(deleteContext.configMap(), properties),
+                lease -> lease.operations().deleteObject(DeleteObjectRequest.builder()
+                    .bucket(properties.getBucket())
+                    .key(objectKey)
+                    .build()),
+                S3ClientPool.Lease::close
+            )
+            .doOnNext(response -> {
+                checkResult(response, "delete object");
+                log.info("Delete object {} from bucket {} successfully",
+                    objectKey, properties.getBucket());
+            })
+            // ignore when the object does not exist
+            .onErrorComplete(NoSuchKeyException.class::isInstance)
+            .onErrorMap(S3ExceptionHandler::map)
+            .then();
+    }
+
+    /**
+     * Whether other attachments of the policy point at the same object, which only happens if
+     * the policy deduplicates uploads.
+     */
+    private Mono<Boolean> isShared(Attachment attachment, String objectKey,
+                                   @Nullable String contentHash) {
+        if (contentHash == null) {
+            return Mono.just(false);
+        }
+        var name = attachment.getMetadata().getName();
+        var listOptions = new ListOptions();
+        listOptions.setFieldSelector(FieldSelector.of(
+            QueryFactory.equal("spec.policyName", attachment.getSpec().getPolicyName())));
+        // linked attachments may point at the object too, so match the object key of any of them
+        return client.listAll(Attachment.class, listOptions, Sort.unsorted())
+            .filter(other -> !Objects.equals(name, other.getMetadata().getName())
+                && other.getMetadata().getDeletionTimestamp() == null
+                && Objects.equals(objectKey, getObjectKey(other)))
+            .hasElements();
+    }
+
+    private Mono<Void> deleteContentObject(@Nullable String contentHash,
+                                           @Nullable String policyName) {
+        if (contentHash == null || policyName == null) {
+            return Mono.empty();
+        }
+        return client.fetch(ContentObject.class, ContentObject.nameOf(contentHash, policyName))
+            .flatMap(client::delete)
+            .onErrorResume((e) -> {
+                log.warn("Failed to delete content index of {}.", contentHash, e);
+                return Mono.empty();
+            })
+            .then();
+    }
+
     @Override
     public Mono<URI> getSharedURL(Attachment attachment, Policy policy, ConfigMap configMap,
                                   Duration ttl) {
@@ -125,10 +221,17 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
             return Mono.error(new IllegalArgumentException(
                 "Cannot obtain object key from attachment " + attachment.getMetadata().getName()));
         }
+        var cacheKey = SharedUrlKey.of(configMap, objectKey, ttl);
+        if (cacheKey != null) {
+            var cached = sharedUrlCache.getIfPresent(cacheKey);
+            if (cached != null && cached.isFresh(ttl)) {
+                return Mono.just(cached.uri());
+            }
+        }
         var properties = S3OsProperties.convertFrom(configMap);
 
-        return Mono.using(() -> buildS3Presigner(properties),
-                s3Presigner -> {
+        return Mono.using(() -> clientPool.acquire(configMap, properties),
+                lease -> {
                     var getObjectRequest = GetObjectRequest.builder()
                         .bucket(properties.getBucket())
                         .key(objectKey)
@@ -137,16 +240,25 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
                         .signatureDuration(ttl)
                         .getObjectRequest(getObjectRequest)
                         .build();
-                    var presignedGetObjectRequest = s3Presigner.presignGetObject(presignedRequest);
+                    var configMapName = configMap.getMetadata() == null ? null
+                        : configMap.getMetadata().getName();
+                    var presignedGetObjectRequest = metrics.timeRequest(configMapName,
+                        "presignGetObject",
+                        () -> lease.presigner().presignGetObject(presignedRequest));
                     var presignedURL = presignedGetObjectRequest.url();
                     try {
-                        return Mono.just(presignedURL.toURI());
+                        var uri = presignedURL.toURI();
+                        if (cacheKey != null) {
+                            sharedUrlCache.put(cacheKey,
+                                new SharedUrl(uri, presignedGetObjectRequest.expiration()));
+                        }
+                        return Mono.just(uri);
                     } catch (URISyntaxException e) {
                         return Mono.error(
                             new RuntimeException("Failed to convert URL " + presignedURL + " to URI."));
                     }
                 },
-                SdkPresigner::close)
+                S3ClientPool.Lease::close)
             .subscribeOn(Schedulers.boundedElastic())
             .onErrorMap(S3ExceptionHandler::map);
     }
@@ -190,8 +302,7 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
 
     Attachment buildAttachment(S3OsProperties properties, ObjectDetail objectDetail) {
         String externalLink = properties.toObjectURL(objectDetail.uploadState.objectKey);
-        var urlSuffix = UrlUtils.findUrlSuffix(properties.getUrlSuffixes(),
-            objectDetail.uploadState.fileName);
+        var urlSuffix = properties.findUrlSuffix(objectDetail.uploadState.fileName);
 
         var metadata = new Metadata();
         metadata.setName(UUID.randomUUID().toString());
@@ -202,13 +313,21 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
             annotations.put(URL_SUFFIX_ANNO_KEY, urlSuffix);
         }
         annotations.put(Constant.EXTERNAL_LINK_ANNO_KEY, externalLink);
+        var uploadState = objectDetail.uploadState;
+        if (uploadState.checksums != null && uploadState.checksum != null) {
+            annotations.put(CHECKSUM_ANNO_KEY_PREFIX + uploadState.checksums.algorithm,
+                uploadState.checksum);
+        }
+        var contentHash = uploadState.contentHash();
+        if (contentHash != null) {
+            annotations.put(CONTENT_HASH_ANNO_KEY, contentHash);
+        }
         metadata.setAnnotations(annotations);
 
-        var objectMetadata = objectDetail.objectMetadata();
         var spec = new AttachmentSpec();
-        spec.setSize(objectMetadata.contentLength());
+        spec.setSize(objectDetail.contentLength());
         spec.setDisplayName(objectDetail.uploadState.fileName);
-        spec.setMediaType(objectMetadata.contentType());
+        spec.setMediaType(objectDetail.contentType());
 
         var attachment = new Attachment();
         attachment.setMetadata(metadata);
@@ -217,167 +336,676 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
         return attachment;
     }
 
-    S3Client buildS3Client(S3OsProperties properties) {
-        return S3Client.builder()
-            .region(Region.of(properties.getRegion()))
-            .endpointOverride(
-                URI.create(properties.getEndpointProtocol() + "://" + properties.getEndpoint()))
-            .credentialsProvider(() -> AwsBasicCredentials.create(properties.getAccessKey(),
-                properties.getAccessSecret()))
-            .serviceConfiguration(S3Configuration.builder()
-                .chunkedEncodingEnabled(false)
-                .pathStyleAccessEnabled(properties.getEnablePathStyleAccess())
-                .build())
-            .build();
-    }
-
-    private S3Presigner buildS3Presigner(S3OsProperties properties) {
-        return S3Presigner.builder()
-            .region(Region.of(properties.getRegion()))
-            .endpointOverride(
-                URI.create(properties.getEndpointProtocol() + "://" + properties.getEndpoint()))
-            .credentialsProvider(() -> AwsBasicCredentials.create(properties.getAccessKey(),
-                properties.getAccessSecret()))
-            .serviceConfiguration(S3Configuration.builder()
-                .chunkedEncodingEnabled(false)
-                .pathStyleAccessEnabled(properties.getEnablePathStyleAccess())
-                .build())
-            .build();
-    }
-
     Flux<DataBuffer> reshape(Publisher<DataBuffer> content, int bufferSize) {
         var dataBufferFactory = DefaultDataBufferFactory.sharedInstance;
-        return Flux.<ByteBuffer>create(sink -> {
-                var byteBuffer = ByteBuffer.allocate(bufferSize);
-                Flux.from(content)
-                    .doOnNext(dataBuffer -> {
-                        var count = dataBuffer.readableByteCount();
-                        for (var i = 0; i < count; i++) {
-                            byteBuffer.put(dataBuffer.read());
-                            // Emit the buffer when buffer
-                            if (!byteBuffer.hasRemaining()) {
-                                sink.next(deepCopy(byteBuffer));
-                                byteBuffer.clear();
-                            }
-                        }
-                    })
-                    .doOnComplete(() -> {
-                        // Emit the last part of buffer.
-                        if (byteBuffer.position() > 0) {
-                            sink.next(deepCopy(byteBuffer));
-                        }
-                    })
-                    .subscribe(DataBufferUtils::release, sink::error, sink::complete,
-                        Context.of(sink.contextView()));
-            })
+        return PartAssembler.assemble(content, bufferSize)
             .map(dataBufferFactory::wrap)
-            .cast(DataBuffer.class)
-            .doOnDiscard(DataBuffer.class, DataBufferUtils::release);
-    }
-
-    ByteBuffer deepCopy(ByteBuffer src) {
-        src.flip();
-        var dest = ByteBuffer.allocate(src.limit());
-        dest.put(src);
-        src.rewind();
-        dest.flip();
-        return dest;
-    }
-
-    Mono<ObjectDetail> upload(UploadContext uploadContext, S3OsProperties properties) {
-        return Mono.using(() -> buildS3Client(properties),
-            client -> {
-                var uploadState = new UploadState(properties, uploadContext.file().filename(), true);
-
-                var content = uploadContext.file().content();
-
-                return checkFileExistsAndRename(uploadState, client)
-                    // init multipart upload
-                    .flatMap(state -> Mono.fromCallable(() -> client.createMultipartUpload(
-                        CreateMultipartUploadRequest.builder()
-                            .bucket(properties.getBucket())
-                            .contentType(state.contentType)
-                            .key(state.objectKey)
-                            .build())))
-                    .doOnNext((response) -> {
-                        checkResult(response, "createMultipartUpload");
-                        uploadState.uploadId = response.uploadId();
-                    })
-                    .thenMany(reshape(content, MULTIPART_MIN_PART_SIZE))
+            .cast(DataBuffer.class);
+    }
+
+    Mono<ObjectDetail> upload(UploadContext uploadContext, S3OsProperties properties,
+                              S3Operations operations) {
+        var uploadState = new UploadState(properties, uploadContext.file().filename(), true);
+        uploadState.policyName = uploadContext.policy().getMetadata().getName();
+        uploadState.configMap = uploadContext.configMap();
+
+        var content = uploadContext.file().content();
+        // -1 for files of multipart/form-data requests, which is what browsers send
+        var contentLength = uploadContext.file().headers().getContentLength();
+        uploadState.spilling = uploadState.exceedsSpillThreshold(contentLength);
+        uploadState.partSizing = PartSizing.of(contentLength,
+            properties.getPartSize() * 1024 * 1024);
+        uploadState.useChecksums(properties.getChecksumAlgorithm(), true);
+        if (Boolean.TRUE.equals(properties.getDeduplicateUploads())) {
+            uploadState.hashContent();
+        }
+
+        var upload = Mono.defer(() -> {
+                // the existence check runs while the first part is received from the client
+                var checked = checkFileExistsAndRename(uploadState, operations).cache();
+                // wait for memory of the first part, most files fit into it
+                var transfer = bufferPool.reserve(uploadState.partSizing.initialPartSize())
                     // buffer to part
-                    .windowUntil((buffer) -> {
-                        uploadState.buffered += buffer.readableByteCount();
-                        if (uploadState.buffered >= MULTIPART_MIN_PART_SIZE) {
-                            uploadState.buffered = 0;
-                            return true;
-                        } else {
-                            return false;
-                        }
-                    })
-                    // upload part
-                    .concatMap((window) -> window.collectList().flatMap((bufferList) -> {
-                        var buffer = S3OsAttachmentHandler.concatBuffers(bufferList);
-                        return uploadPart(uploadState, buffer, client);
-                    }))
-                    .reduce(uploadState, (state, completedPart) -> {
-                        state.completedParts.put(completedPart.partNumber(), completedPart);
-                        return state;
-                    })
-                    // complete multipart upload
-                    .flatMap((state) -> Mono.just(client.completeMultipartUpload(
-                        CompleteMultipartUploadRequest
-                            .builder()
-                            .bucket(properties.getBucket())
-                            .uploadId(state.uploadId)
-                            .multipartUpload(CompletedMultipartUpload.builder()
-                                .parts(state.completedParts.values())
-                                .build())
-                            .key(state.objectKey)
-                            .build())
-                    ))
-                    // get object metadata
-                    .flatMap((response) -> {
-                        checkResult(response, "completeUpload");
-                        return Mono.just(client.headObject(
-                            HeadObjectRequest.builder()
-                                .bucket(properties.getBucket())
-                                .key(uploadState.objectKey)
-                                .build()
-                        ));
+                    .flatMapMany(reservation -> {
+                        uploadState.buffers = reservation;
+                        return PartAssembler.assemble(content, uploadState.partSizing::partSize,
+                            reservation, uploadState.assemblyListener());
                     })
-                    // build object detail
-                    .map((response) -> {
-                        checkResult(response, "getMetadata");
-                        log.info("Uploaded object {} to bucket {} successfully",
-                            uploadState.objectKey, properties.getBucket());
-                        return new ObjectDetail(uploadState, response);
-                    })
-                    // close client
-                    .doFinally((signalType) -> {
-                        if (uploadState.needRemoveMapKey) {
-                            uploadingFile.remove(uploadState.getUploadingMapKey());
+                    .<UploadState>switchOnFirst((signal, parts) -> {
+                        if (signal.isOnError()) {
+                            return Mono.error(signal.getThrowable());
                         }
-                    });
-            },
-            SdkAutoCloseable::close);
+                        var firstPart = signal.get();
+                        if (firstPart == null
+                            || firstPart.remaining() < uploadState.partSizing.initialPartSize()) {
+                            // the whole content fits in a single part
+                            var buffer = firstPart == null ? ByteBuffer.allocate(0) : firstPart;
+                            return checked.then(Mono.defer(() -> findDuplicate(uploadState,
+                                    operations)))
+                                .map((duplicate) -> {
+                                    // nothing needs to be sent
+                                    if (uploadState.checksums != null) {
+                                        uploadState.checksums.take(buffer);
+                                    }
+                                    uploadState.releaseBuffer(buffer, SignalType.ON_COMPLETE);
+                                    return useDuplicate(uploadState, duplicate);
+                                })
+                                .switchIfEmpty(Mono.defer(
+                                    () -> putObject(uploadState, buffer, operations)));
+                        }
+                        // a full first part means a multipart upload, whatever the request
+                        // said about the length, initiate it while the existence check runs
+                        uploadState.speculativeUpload = SpeculativeUpload.start(
+                            uploadState.objectKey, createMultipartUploadRequest(uploadState),
+                            operations);
+                        // a conditional write would only refuse the object once every part
+                        // has been sent, so rename a large upload before that
+                        var renamed = uploadState.conditionalWrites()
+                            ? checked.then(Mono.defer(
+                                () -> checkFileExistsAndRename(uploadState, operations, true)))
+                            : checked;
+                        // memory of the parts sent in parallel and the one being filled,
+                        // staged parts only need memory until they are written to disk
+                        var expanded = uploadState.buffers.expand(uploadState.spilling
+                            ? PartBufferPool.MIN_PARTS : properties.getPartConcurrency() + 1);
+                        return renamed.then(expanded)
+                            .then(Mono.defer(() -> multipartUpload(uploadState, parts,
+                                operations)));
+                    })
+                    .single();
+                return Mono.zip(checked, transfer, (state, transferred) -> transferred);
+            })
+            .flatMap((state) -> indexContent(state).thenReturn(state))
+            // build object detail
+            .flatMap((state) -> {
+                if (!Boolean.TRUE.equals(properties.getVerifyUploadedObject())) {
+                    return Mono.just(new ObjectDetail(state, state.size, state.contentType,
+                        state.eTag));
+                }
+                return verifyUploadedObject(state, operations);
+            })
+            .doOnNext((objectDetail) -> {
+                log.info("Uploaded object {} to bucket {} successfully", uploadState.objectKey,
+                    properties.getBucket());
+                metrics.uploaded(uploadState.policyName, objectDetail.contentLength(),
+                    Math.max(uploadState.partCounter, 1));
+            })
+            // drop the multipart upload initiated for a key the object did not get, while the
+            // clients are still leased
+            .flatMap((objectDetail) -> abortSpeculativeUpload(uploadState, operations)
+                .thenReturn(objectDetail))
+            .onErrorResume((e) -> abortSpeculativeUpload(uploadState, operations)
+                .then(Mono.error(e)))
+            .doOnCancel(() -> abortInBackground(uploadState,
+                (leased) -> abortSpeculativeUpload(uploadState, leased)))
+            // release uploading lock and part buffers
+            .doFinally((signalType) -> {
+                if (uploadState.needRemoveMapKey) {
+                    uploadingFile.remove(uploadState.getUploadingMapKey());
+                }
+                if (uploadState.buffers != null) {
+                    uploadState.buffers.close();
+                }
+            });
+        return metrics.timeUpload(uploadState.policyName, upload);
+    }
+
+    Mono<UploadState> putObject(UploadState uploadState, ByteBuffer buffer,
+                                S3Operations operations) {
+        String checksum = null;
+        if (uploadState.checksums != null) {
+            // the only part is the whole object
+            uploadState.checksums.take(buffer);
+            checksum = uploadState.checksums.objectChecksum();
+        }
+        var objectChecksum = checksum;
+        return Mono.defer(() -> {
+                var request = PutObjectRequest.builder()
+                    .bucket(uploadState.properties.getBucket())
+                    .key(uploadState.objectKey)
+                    .contentType(uploadState.contentType)
+                    .contentLength((long) buffer.remaining());
+                if (uploadState.conditionalWrites()) {
+                    request.ifNoneMatch("*");
+                }
+                if (uploadState.checksums != null) {
+                    setChecksum(uploadState.checksums, objectChecksum, request::checksumCRC32C,
+                        request::checksumSHA256);
+                }
+                // the buffer may be sent again under another name
+                return operations.putObject(request.build(), buffer.duplicate());
+            })
+            .retryWhen(Retry.max(3)
+                .filter((e) -> uploadState.conditionalWrites() && isObjectTaken(e))
+                .doAfterRetry((retrySignal) -> {
+                    metrics.retried(uploadState.policyName, "putObject");
+                    renameAfterConflict(uploadState);
+                }))
+            .onErrorMap(Exceptions::isRetryExhausted,
+                (e) -> new ServerWebInputException("文件 " + uploadState.objectKey
+                    + " 已存在，建议更名后重试。[remote]"))
+            .doOnNext((response) -> {
+                checkResult(response, "putObject");
+                uploadState.size = buffer.remaining();
+                uploadState.eTag = response.eTag();
+                uploadState.checksum = objectChecksum;
+            })
+            .doFinally((signalType) -> uploadState.releaseBuffer(buffer, signalType))
+            .thenReturn(uploadState);
+    }
+
+    Mono<UploadState> multipartUpload(UploadState uploadState, Flux<ByteBuffer> parts,
+                                      S3Operations operations) {
+        var speculativeUpload = uploadState.speculativeUpload;
+        // init multipart upload, unless it was initiated for the same object key already
+        var created = speculativeUpload != null && speculativeUpload.claim(uploadState.objectKey)
+            ? speculativeUpload.response()
+            : operations.createMultipartUpload(createMultipartUploadRequest(uploadState));
+        return created
+            .doOnNext((response) -> {
+                checkResult(response, "createMultipartUpload");
+                uploadState.uploadId = response.uploadId();
+            })
+            .then(Mono.defer(() -> openSession(uploadState)))
+            .then(uploadParts(uploadState, parts, operations))
+            .flatMap((state) -> findDuplicate(state, operations)
+                // the parts are not needed, drop them instead of storing a duplicate
+                .flatMap((duplicate) -> closeSession(state)
+                    .then(abortMultipartUpload(state, operations))
+                    .then(Mono.fromSupplier(() -> useDuplicate(state, duplicate))))
+                .switchIfEmpty(Mono.defer(() -> completeMultipartUpload(state, operations))))
+            .onErrorResume((e) -> abortMultipartUpload(uploadState, operations)
+                .then(Mono.error(e)))
+            // cancelling stops reading the body and sending parts, the parts already
+            // uploaded are dropped in the background
+            .doOnCancel(() -> abortInBackground(uploadState,
+                (leased) -> abortMultipartUpload(uploadState, leased)));
+    }
+
+    static CreateMultipartUploadRequest createMultipartUploadRequest(UploadState uploadState) {
+        var request = CreateMultipartUploadRequest.builder()
+            .bucket(uploadState.properties.getBucket())
+            .contentType(uploadState.contentType)
+            .key(uploadState.objectKey);
+        if (uploadState.checksums != null) {
+            request.checksumAlgorithm(uploadState.checksums.sdkAlgorithm())
+                .checksumType(uploadState.checksums.checksumType());
+        }
+        return request.build();
+    }
+
+    /**
+     * Abort the multipart upload, unless it has completed or can be resumed.
+     */
+    Mono<Void> abortMultipartUpload(UploadState uploadState, S3Operations operations) {
+        return Mono.defer(() -> {
+            if (uploadState.uploadId == null || uploadState.completed
+                || uploadState.session != null) {
+                return Mono.empty();
+            }
+            return abortMultipartUpload(uploadState.properties.getBucket(),
+                uploadState.objectKey, uploadState.uploadId, operations);
+        });
+    }
+
+    Mono<Void> abortSpeculativeUpload(UploadState uploadState, S3Operations operations) {
+        return Mono.defer(() -> uploadState.speculativeUpload == null ? Mono.empty()
+            : uploadState.speculativeUpload.abortUnlessClaimed(
+                uploadState.properties.getBucket(), operations));
+    }
+
+    /**
+     * Abort what a cancelled upload leaves behind. Cancelling closes the lease of the upload
+     * right away, so the abort leases the clients on its own until it is done.
+     */
+    void abortInBackground(UploadState uploadState, Function<S3Operations, Mono<Void>> abort) {
+        Mono.using(() -> uploadState.configMap != null
+                    ? clientPool.acquire(uploadState.configMap, uploadState.properties)
+                    : clientPool.acquireDetached(uploadState.properties),
+                (lease) -> abort.apply(lease.operations()),
+                S3ClientPool.Lease::close)
+            .subscribe(null, (e) -> log.warn("Failed to abort the cancelled upload of {}, it "
+                + "will be aborted by the reaper later.", uploadState.objectKey, e));
+    }
+
+    /**
+     * Abort the multipart upload. Failures are only logged, the reaper aborts it later.
+     */
+    static Mono<Void> abortMultipartUpload(String bucket, String objectKey, String uploadId,
+                                           S3Operations operations) {
+        return operations.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(objectKey)
+                .uploadId(uploadId)
+                .build())
+            .doOnNext((response) -> log.info("Aborted multipart upload of {}.", objectKey))
+            .onErrorResume((e) -> {
+                log.warn("Failed to abort multipart upload of {}, it will be aborted by "
+                    + "the reaper later.", objectKey, e);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * Resume the multipart upload of the session. Parts that the object storage already has
+     * without gaps from the first part are kept, the content is the rest of the file.
+     *
+     * @param session upload session to resume
+     * @param properties properties of the session's policy
+     * @param content content of the file starting at the given offset
+     * @param offset offset of the content in the file, at most the uploaded size
+     * @param operations S3 operations
+     * @return detail of the completed object
+     */
+    Mono<ObjectDetail> resumeUpload(UploadSession session, S3OsProperties properties,
+                                    Publisher<DataBuffer> content, long offset,
+                                    S3Operations operations) {
+        var spec = session.getSpec();
+        var uploadState = new UploadState(properties, spec.getFileName(), false);
+        uploadState.objectKey = spec.getObjectKey();
+        uploadState.contentType = spec.getContentType();
+        uploadState.uploadId = spec.getUploadId();
+        uploadState.partSizing = new PartSizing(spec.getPartSize(),
+            Boolean.TRUE.equals(spec.getGrowingPartSize()));
+        if (spec.getChecksumAlgorithm() != null) {
+            // bytes uploaded before are not sent again, so only parts get checksums
+            uploadState.useChecksums(
+                S3OsProperties.ChecksumAlgorithm.valueOf(spec.getChecksumAlgorithm()), false);
+        }
+        uploadState.policyName = spec.getPolicyName();
+        uploadState.session = session;
+
+        var upload = Mono.defer(() -> {
+                if (uploadingFile.putIfAbsent(uploadState.getUploadingMapKey(),
+                    uploadState.getUploadingMapKey()) != null) {
+                    return Mono.error(new ServerWebInputException(
+                        "文件 " + uploadState.objectKey + " 正在上传中，请稍后重试。"));
+                }
+                uploadState.needRemoveMapKey = true;
+                return reconcileUploadedParts(uploadState, operations);
+            })
+            .flatMap((state) -> {
+                if (offset < 0 || offset > state.size) {
+                    return Mono.error(new ServerWebInputException(
+                        "续传偏移量 " + offset + " 无效，已上传 " + state.size + " 字节。"));
+                }
+                return bufferPool.reserve(state.partSizing.partSize(state.partCounter + 1),
+                    properties.getPartConcurrency() + 1);
+            })
+            .flatMap((reservation) -> {
+                uploadState.buffers = reservation;
+                // skip what the client sent again
+                var rest = DataBufferUtils.skipUntilByteCount(content, uploadState.size - offset);
+                var uploadedParts = uploadState.partCounter;
+                return uploadParts(uploadState, PartAssembler.assemble(rest,
+                        partNumber -> uploadState.partSizing.partSize(uploadedParts + partNumber),
+                        reservation, uploadState.checksums),
+                    operations);
+            })
+            .flatMap((state) -> completeMultipartUpload(state, operations))
+            .map((state) -> new ObjectDetail(state, state.size, state.contentType, state.eTag))
+            .doOnNext((objectDetail) -> {
+                log.info("Resumed upload of {} completed successfully", uploadState.objectKey);
+                metrics.uploaded(uploadState.policyName, objectDetail.contentLength(),
+                    uploadState.partCounter);
+            })
+            .doFinally((signalType) -> {
+                if (uploadState.needRemoveMapKey) {
+                    uploadingFile.remove(uploadState.getUploadingMapKey());
+                }
+                if (uploadState.buffers != null) {
+                    uploadState.buffers.close();
+                }
+            });
+        return metrics.timeUpload(uploadState.policyName, upload);
+    }
+
+    /**
+     * Keep the parts the object storage already has, as long as they are full parts without gaps
+     * from the first part, and record them in the session.
+     */
+    Mono<UploadState> reconcileUploadedParts(UploadState uploadState,
+                                             S3Operations operations) {
+        return operations.listAllParts(ListPartsRequest.builder()
+                .bucket(uploadState.properties.getBucket())
+                .key(uploadState.objectKey)
+                .uploadId(uploadState.uploadId)
+                .build())
+            .sort(Comparator.comparing(software.amazon.awssdk.services.s3.model.Part::partNumber))
+            .takeWhile((part) -> part.partNumber() == uploadState.partCounter + 1
+                && part.size() == uploadState.partSizing.partSize(part.partNumber()))
+            .doOnNext((part) -> {
+                uploadState.partCounter = part.partNumber();
+                uploadState.size += part.size();
+                var completedPart = CompletedPart.builder()
+                    .partNumber(part.partNumber())
+                    .eTag(part.eTag());
+                if (uploadState.checksums != null) {
+                    setChecksum(uploadState.checksums, switch (uploadState.checksums.algorithm) {
+                        case crc32c -> part.checksumCRC32C();
+                        case sha256 -> part.checksumSHA256();
+                        case none -> null;
+                    }, completedPart::checksumCRC32C, completedPart::checksumSHA256);
+                }
+                uploadState.completedParts.put(part.partNumber(), completedPart.build());
+            })
+            .then(Mono.defer(() -> {
+                log.info("Resuming upload of {} after {} parts.", uploadState.objectKey,
+                    uploadState.partCounter);
+                var status = new UploadSession.Status();
+                status.setUploadedParts(uploadState.partCounter);
+                status.setUploadedSize(uploadState.size);
+                return updateSession(uploadState, status);
+            }))
+            .thenReturn(uploadState);
+    }
+
+    Mono<UploadState> uploadParts(UploadState uploadState, Flux<ByteBuffer> parts,
+                                  S3Operations operations) {
+        return parts
+            // stage parts of very large uploads to disk
+            .concatMap((buffer) -> stagePart(uploadState, buffer))
+            // upload parts in parallel, keep them in order
+            .flatMapSequential((part) -> uploadPart(uploadState, part, operations),
+                uploadState.partConcurrency())
+            .doOnDiscard(Part.class, Part::discard)
+            // parts arrive in order, so the session always records a prefix without gaps
+            .concatMap((completedPart) -> recordPart(uploadState, completedPart))
+            .reduce(uploadState, (state, completedPart) -> {
+                state.completedParts.put(completedPart.partNumber(), completedPart);
+                return state;
+            });
+    }
+
+    Mono<UploadState> completeMultipartUpload(UploadState uploadState,
+                                              S3Operations operations) {
+        var request = CompleteMultipartUploadRequest.builder()
+            .bucket(uploadState.properties.getBucket())
+            .uploadId(uploadState.uploadId)
+            .multipartUpload(CompletedMultipartUpload.builder()
+                .parts(uploadState.completedParts.values())
+                .build())
+            .key(uploadState.objectKey);
+        var checksums = uploadState.checksums;
+        var fullObject = checksums != null && checksums.checksumType() == ChecksumType.FULL_OBJECT;
+        // a resumed upload does not know the bytes sent before, the object storage then combines
+        // the part checksums on its own
+        if (fullObject && checksums.objectChecksum() != null) {
+            request.checksumType(ChecksumType.FULL_OBJECT)
+                .checksumCRC32C(checksums.objectChecksum());
+        }
+        if (uploadState.conditionalWrites()) {
+            request.ifNoneMatch("*");
+        }
+        return operations.completeMultipartUpload(request.build())
+            // the parts belong to the object key, so the upload cannot go on under another name
+            .onErrorResume((e) -> uploadState.conditionalWrites() && isObjectTaken(e),
+                (e) -> closeSession(uploadState).then(Mono.<CompleteMultipartUploadResponse>error(
+                    new ServerWebInputException(
+                        "文件 " + uploadState.objectKey + " 已存在，建议更名后重试。[remote]"))))
+            .doOnNext((response) -> {
+                checkResult(response, "completeUpload");
+                uploadState.completed = true;
+                uploadState.eTag = response.eTag();
+                if (checksums != null) {
+                    // a resumed upload only knows the full object checksum from the response,
+                    // composite checksums are checksums of part checksums, not of the object
+                    uploadState.checksum = checksums.objectChecksum() != null
+                        ? checksums.objectChecksum()
+                        : fullObject ? response.checksumCRC32C() : null;
+                }
+            })
+            .then(Mono.defer(() -> closeSession(uploadState)))
+            .thenReturn(uploadState);
+    }
+
+    /**
+     * Persist the multipart upload as a session if the policy allows resuming it. Uploads without
+     * an authenticated user get no session, as only the owner may resume it.
+     */
+    Mono<Void> openSession(UploadState uploadState) {
+        if (!Boolean.TRUE.equals(uploadState.properties.getResumableUpload())
+            || uploadState.policyName == null) {
+            return Mono.empty();
+        }
+        return ReactiveSecurityContextHolder.getContext()
+            .mapNotNull((context) -> context.getAuthentication())
+            .map(Authentication::getName)
+            .filter(StringUtils::isNotBlank)
+            .flatMap((ownerName) -> {
+                var metadata = new Metadata();
+                metadata.setGenerateName("upload-");
+                var spec = new UploadSession.Spec();
+                spec.setPolicyName(uploadState.policyName);
+                spec.setBucket(uploadState.properties.getBucket());
+                spec.setObjectKey(uploadState.objectKey);
+                spec.setUploadId(uploadState.uploadId);
+                spec.setFileName(uploadState.fileName);
+                spec.setContentType(uploadState.contentType);
+                spec.setPartSize(uploadState.partSizing.initialPartSize());
+                spec.setGrowingPartSize(uploadState.partSizing.growing());
+                if (uploadState.checksums != null) {
+                    spec.setChecksumAlgorithm(uploadState.checksums.algorithm.name());
+                }
+                spec.setOwnerName(ownerName);
+                var session = new UploadSession();
+                session.setMetadata(metadata);
+                session.setSpec(spec);
+                session.setStatus(new UploadSession.Status());
+                return client.create(session);
+            })
+            .doOnNext((session) -> {
+                uploadState.session = session;
+                log.info("Opened upload session {} for {}.", session.getMetadata().getName(),
+                    uploadState.objectKey);
+            })
+            .then();
+    }
+
+    private Mono<CompletedPart> recordPart(UploadState uploadState, CompletedPart completedPart) {
+        var partSize = uploadState.partSizes.remove(completedPart.partNumber());
+        if (uploadState.session == null || partSize == null) {
+            return Mono.just(completedPart);
+        }
+        var status = new UploadSession.Status();
+        status.setUploadedParts(completedPart.partNumber());
+        status.setUploadedSize(uploadState.session.getStatus().getUploadedSize() + partSize);
+        return updateSession(uploadState, status).thenReturn(completedPart);
+    }
+
+    private Mono<Void> updateSession(UploadState uploadState, UploadSession.Status status) {
+        var session = uploadState.session;
+        if (session == null) {
+            return Mono.empty();
+        }
+        session.setStatus(status);
+        return client.update(session)
+            .doOnNext((updated) -> uploadState.session = updated)
+            // the session only helps resuming, the upload itself goes on
+            .onErrorResume((e) -> {
+                log.warn("Failed to update upload session {}.", session.getMetadata().getName(),
+                    e);
+                return Mono.empty();
+            })
+            .then();
     }
 
+    private Mono<Void> closeSession(UploadState uploadState) {
+        var session = uploadState.session;
+        if (session == null) {
+            return Mono.empty();
+        }
+        return client.delete(session)
+            .doOnNext((deleted) -> uploadState.session = null)
+            .onErrorResume((e) -> {
+                log.warn("Failed to delete completed upload session {}.",
+                    session.getMetadata().getName(), e);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * Look up an object of the policy with the same content in the content index. Objects deleted
+     * from the object storage behind our back are removed from the index.
+     *
+     * @return the object with the same content, empty if none or deduplication is disabled
+     */
+    Mono<ContentObject> findDuplicate(UploadState uploadState, S3Operations operations) {
+        var contentHash = uploadState.contentHash();
+        if (contentHash == null || uploadState.policyName == null) {
+            return Mono.empty();
+        }
+        var bucket = uploadState.properties.getBucket();
+        return client.fetch(ContentObject.class,
+                ContentObject.nameOf(contentHash, uploadState.policyName))
+            .filter((contentObject) -> Objects.equals(bucket, contentObject.getSpec().getBucket()))
+            .flatMap((contentObject) -> operations.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(contentObject.getSpec().getObjectKey())
+                    .build())
+                .filter((response) -> Objects.equals(response.contentLength(),
+                    contentObject.getSpec().getSize()))
+                .map((response) -> {
+                    // keep the entity tag of the object the attachment points at
+                    uploadState.eTag = response.eTag();
+                    return contentObject;
+                })
+                .onErrorResume(NoSuchKeyException.class, (e) -> client.delete(contentObject)
+                    .then(Mono.<ContentObject>empty())))
+            .doOnNext((contentObject) -> log.info("Content of {} is stored as {} already.",
+                uploadState.objectKey, contentObject.getSpec().getObjectKey()))
+            // deduplication only saves space, the upload goes on without it
+            .onErrorResume((e) -> {
+                log.warn("Failed to look up content of {} in the content index.",
+                    uploadState.objectKey, e);
+                return Mono.empty();
+            });
+    }
+
+    /**
+     * Point the upload at the existing object with the same content instead of its own object.
+     */
+    UploadState useDuplicate(UploadState uploadState, ContentObject duplicate) {
+        if (uploadState.needRemoveMapKey) {
+            uploadingFile.remove(uploadState.getUploadingMapKey());
+            uploadState.needRemoveMapKey = false;
+        }
+        uploadState.deduplicated = true;
+        uploadState.objectKey = duplicate.getSpec().getObjectKey();
+        uploadState.size = duplicate.getSpec().getSize();
+        return uploadState;
+    }
+
+    /**
+     * Record the uploaded object in the content index of the policy.
+     */
+    Mono<Void> indexContent(UploadState uploadState) {
+        var contentHash = uploadState.contentHash();
+        if (contentHash == null || uploadState.policyName == null || uploadState.deduplicated) {
+            return Mono.empty();
+        }
+        var spec = new ContentObject.Spec();
+        spec.setPolicyName(uploadState.policyName);
+        spec.setBucket(uploadState.properties.getBucket());
+        spec.setObjectKey(uploadState.objectKey);
+        spec.setSize(uploadState.size);
+        spec.setContentType(uploadState.contentType);
+        var name = ContentObject.nameOf(contentHash, uploadState.policyName);
+        return client.fetch(ContentObject.class, name)
+            .flatMap((existing) -> {
+                // e.g. the object was deleted from the object storage behind our back
+                existing.setSpec(spec);
+                return client.update(existing);
+            })
+            .switchIfEmpty(Mono.defer(() -> {
+                var metadata = new Metadata();
+                metadata.setName(name);
+                var contentObject = new ContentObject();
+                contentObject.setMetadata(metadata);
+                contentObject.setSpec(spec);
+                return client.create(contentObject);
+            }))
+            .onErrorResume((e) -> {
+                log.warn("Failed to add {} to the content index.", uploadState.objectKey, e);
+                return Mono.empty();
+            })
+            .then();
+    }
+
+    /**
+     * Read the metadata of the uploaded object back from the object storage and make sure it has
+     * the size we have sent, and the checksum we have computed if the object storage keeps it.
+     */
+    Mono<ObjectDetail> verifyUploadedObject(UploadState uploadState, S3Operations operations) {
+        var checksums = uploadState.checksums;
+        var request = HeadObjectRequest.builder()
+            .bucket(uploadState.properties.getBucket())
+            .key(uploadState.objectKey);
+        if (checksums != null && uploadState.checksum != null) {
+            request.checksumMode(ChecksumMode.ENABLED);
+        }
+        return operations.headObject(request.build())
+            .map((response) -> {
+                checkResult(response, "getMetadata");
+                if (response.contentLength() == null
+                    || response.contentLength() != uploadState.size) {
+                    log.error("Size of uploaded object {} is {}, but {} bytes were sent.",
+                        uploadState.objectKey, response.contentLength(), uploadState.size);
+                    throw new ServerErrorException("对象存储中的文件大小与上传的文件大小不一致", null);
+                }
+                if (checksums != null && uploadState.checksum != null) {
+                    var stored = switch (checksums.algorithm) {
+                        case crc32c -> response.checksumCRC32C();
+                        case sha256 -> response.checksumSHA256();
+                        case none -> null;
+                    };
+                    // composite checksums end with the number of parts and cannot be compared
+                    if (stored != null && !stored.contains("-")
+                        && !stored.equals(uploadState.checksum)) {
+                        log.error("Checksum of uploaded object {} is {}, but {} was computed.",
+                            uploadState.objectKey, stored, uploadState.checksum);
+                        throw new ServerErrorException("对象存储中的文件校验和与上传的文件不一致",
+                            null);
+                    }
+                }
+                return ObjectDetail.from(uploadState, response);
+            });
+    }
+
+    Mono<UploadState> checkFileExistsAndRename(UploadState uploadState,
+                                               S3Operations operations) {
+        // a conditional write finds out on its own whether the object exists
+        return checkFileExistsAndRename(uploadState, operations,
+            !uploadState.conditionalWrites());
+    }
+
+    /**
+     * Take the uploading lock of the object key, and rename the upload while the key is taken.
+     *
+     * @param checkRemote whether to ask the object storage if the object exists
+     */
     Mono<UploadState> checkFileExistsAndRename(UploadState uploadState,
-                                               S3Client s3client) {
+                                               S3Operations operations, boolean checkRemote) {
         return Mono.defer(() -> {
-                // deduplication of uploading files
-                if (uploadingFile.put(uploadState.getUploadingMapKey(),
+                // deduplication of uploading files, the lock may be held from an earlier check
+                if (!uploadState.needRemoveMapKey
+                    && uploadingFile.putIfAbsent(uploadState.getUploadingMapKey(),
                     uploadState.getUploadingMapKey()) != null) {
                     return Mono.error(new FileAlreadyExistsException("文件 " + uploadState.objectKey
                                                                      +
                                                                      " 已存在，建议更名后重试。[local]"));
                 }
                 uploadState.needRemoveMapKey = true;
+                if (!checkRemote) {
+                    return Mono.just(uploadState);
+                }
                 // check whether file exists
-                return Mono.fromSupplier(() -> s3client.headObject(HeadObjectRequest.builder()
+                return operations.headObject(HeadObjectRequest.builder()
                         .bucket(uploadState.properties.getBucket())
                         .key(uploadState.objectKey)
-                        .build()))
+                        .build())
                     .onErrorResume(NoSuchKeyException.class, e -> {
                         var builder = HeadObjectResponse.builder();
                         builder.sdkHttpResponse(SdkHttpResponse.builder().statusCode(404).build());
@@ -397,6 +1025,7 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
             .retryWhen(Retry.max(3)
                 .filter(FileAlreadyExistsException.class::isInstance)
                 .doAfterRetry((retrySignal) -> {
+                    metrics.retried(uploadState.policyName, "headObject");
                     if (uploadState.needRemoveMapKey) {
                         uploadingFile.remove(uploadState.getUploadingMapKey());
                         uploadState.needRemoveMapKey = false;
@@ -409,50 +1038,150 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
     }
 
 
-    Mono<CompletedPart> uploadPart(UploadState uploadState, ByteBuffer buffer,
-                                   S3Client s3client) {
+    /**
+     * Rename the upload after a conditional write found the object key taken.
+     */
+    private void renameAfterConflict(UploadState uploadState) {
+        if (uploadState.needRemoveMapKey) {
+            uploadingFile.remove(uploadState.getUploadingMapKey());
+            uploadState.needRemoveMapKey = false;
+        }
+        // the new name must not be taken by another upload on this node either
+        for (int attempt = 1; ; attempt++) {
+            uploadState.randomDuplicateFileName();
+            if (uploadingFile.putIfAbsent(uploadState.getUploadingMapKey(),
+                uploadState.getUploadingMapKey()) == null) {
+                break;
+            }
+            if (attempt >= MAX_RENAME_ATTEMPTS) {
+                throw new ServerWebInputException("文件 " + uploadState.originalFileName
+                    + " 已存在，建议更名后重试。[local]");
+            }
+        }
+        uploadState.needRemoveMapKey = true;
+        log.info("Object key is taken, uploading as {} instead.", uploadState.objectKey);
+    }
+
+    /**
+     * Whether a conditional write failed because the object exists, or another conditional write
+     * to the same key is in progress.
+     */
+    static boolean isObjectTaken(Throwable throwable) {
+        return throwable instanceof S3Exception s3Exception
+            && (s3Exception.statusCode() == 412 || s3Exception.statusCode() == 409);
+    }
+
+    /**
+     * Write the part to disk once the upload exceeds the spill threshold. The memory of a staged
+     * part is released right away.
+     */
+    Mono<Part> stagePart(UploadState uploadState, ByteBuffer buffer) {
+        uploadState.received += buffer.remaining();
+        var checksum = uploadState.checksums == null ? null : uploadState.checksums.take(buffer);
+        if (!uploadState.spilling
+            && !uploadState.exceedsSpillThreshold(uploadState.received)) {
+            return Mono.just(new Part(buffer, null, checksum));
+        }
+        uploadState.spilling = true;
+        return partStager.stage(uploadState.properties, buffer)
+            .onErrorResume(IOException.class, (e) -> {
+                log.warn("Failed to stage part of {}, keeping it in memory.",
+                    uploadState.objectKey, e);
+                return Mono.empty();
+            })
+            .map((stagedPart) -> {
+                uploadState.releaseBuffer(buffer, SignalType.ON_COMPLETE);
+                return new Part(null, stagedPart, checksum);
+            })
+            .defaultIfEmpty(new Part(buffer, null, checksum));
+    }
+
+    Mono<CompletedPart> uploadPart(UploadState uploadState, Part part,
+                                   S3Operations operations) {
         final int partNumber = ++uploadState.partCounter;
-        return Mono.just(s3client.uploadPart(UploadPartRequest.builder()
-                    .bucket(uploadState.properties.getBucket())
-                    .key(uploadState.objectKey)
-                    .partNumber(partNumber)
-                    .uploadId(uploadState.uploadId)
-                    .contentLength((long) buffer.capacity())
-                    .build(),
-                RequestBody.fromByteBuffer(buffer)))
+        uploadState.size += part.size();
+        uploadState.partSizes.put(partNumber, part.size());
+        var builder = UploadPartRequest.builder()
+            .bucket(uploadState.properties.getBucket())
+            .key(uploadState.objectKey)
+            .partNumber(partNumber)
+            .uploadId(uploadState.uploadId)
+            .contentLength(part.size());
+        if (uploadState.checksums != null) {
+            setChecksum(uploadState.checksums, part.checksum(), builder::checksumCRC32C,
+                builder::checksumSHA256);
+        }
+        var request = builder.build();
+        Mono<UploadPartResponse> response;
+        if (part.stagedPart() != null) {
+            // the staged file can be sent again without the client
+            response = operations.uploadPart(request, part.stagedPart().file())
+                .retryWhen(Retry.backoff(STAGED_PART_RETRIES, Duration.ofSeconds(1))
+                    .filter(S3OsAttachmentHandler::isTransient)
+                    .doAfterRetry((retrySignal) -> metrics.retried(uploadState.policyName,
+                        "uploadPart")));
+        } else {
+            response = operations.uploadPart(request, part.buffer());
+        }
+        return response
             .map((uploadPartResult) -> {
                 checkResult(uploadPartResult, "uploadPart");
-                return CompletedPart.builder()
+                var completedPart = CompletedPart.builder()
                     .eTag(uploadPartResult.eTag())
-                    .partNumber(partNumber)
-                    .build();
+                    .partNumber(partNumber);
+                if (uploadState.checksums != null) {
+                    setChecksum(uploadState.checksums, part.checksum(),
+                        completedPart::checksumCRC32C, completedPart::checksumSHA256);
+                }
+                return completedPart.build();
+            })
+            .doFinally((signalType) -> {
+                if (part.stagedPart() != null) {
+                    part.stagedPart().delete();
+                } else {
+                    uploadState.releaseBuffer(part.buffer(), signalType);
+                }
             });
     }
 
+    /**
+     * Set the checksum on a request builder, the setter depends on the algorithm.
+     */
+    private static void setChecksum(UploadChecksums checksums, @Nullable String checksum,
+                                    Consumer<String> crc32c, Consumer<String> sha256) {
+        if (checksum == null) {
+            return;
+        }
+        switch (checksums.algorithm) {
+            case crc32c -> crc32c.accept(checksum);
+            case sha256 -> sha256.accept(checksum);
+            case none -> {
+            }
+        }
+    }
+
+    static boolean isTransient(Throwable throwable) {
+        if (throwable instanceof S3Exception s3Exception) {
+            return s3Exception.statusCode() >= 500;
+        }
+        return throwable instanceof SdkClientException;
+    }
+
     static void checkResult(SdkResponse result, String operation) {
-        log.info("operation: {}, result: {}", operation, result);
+        log.debug("operation: {}, result: {}", operation, result);
         if (result.sdkHttpResponse() == null || !result.sdkHttpResponse().isSuccessful()) {
             log.error("Failed to upload object, response: {}", result.sdkHttpResponse());
             throw new ServerErrorException("对象存储响应错误，无法将对象上传到S3对象存储", null);
         }
     }
 
-    static ByteBuffer concatBuffers(List<DataBuffer> buffers) {
-        int partSize = 0;
-        for (DataBuffer b : buffers) {
-            partSize += b.readableByteCount();
-        }
-
-        ByteBuffer partData = ByteBuffer.allocate(partSize);
-        buffers.forEach((buffer) -> partData.put(buffer.toByteBuffer()));
-
-        // Reset read pointer to first byte
-        partData.rewind();
-
-        return partData;
+    /**
+     * Whether an upload to the object is in progress on this node.
+     */
+    boolean isUploading(String bucket, String objectKey) {
+        return uploadingFile.containsKey(bucket + "/" + objectKey);
     }
 
-
     boolean shouldHandle(Policy policy) {
         if (policy == null || policy.getSpec() == null ||
             policy.getSpec().getTemplateName() == null) {
@@ -462,20 +1191,196 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
         return "s3os".equals(templateName);
     }
 
-    record ObjectDetail(UploadState uploadState, HeadObjectResponse objectMetadata) {
+    /**
+     * Content of a part, either in memory or staged in a local file.
+     *
+     * @param checksum base64 encoded checksum of the part, null if checksums are not used
+     */
+    record Part(@Nullable ByteBuffer buffer, @Nullable PartStager.StagedPart stagedPart,
+                @Nullable String checksum) {
+
+        long size() {
+            return stagedPart != null ? stagedPart.size() : buffer.remaining();
+        }
+
+        void discard() {
+            if (stagedPart != null) {
+                stagedPart.delete();
+            }
+        }
+    }
+
+    /**
+     * A multipart upload initiated before the existence check has finished, for the object key the
+     * upload had back then. The upload claims it if the key is still the same, otherwise it is
+     * aborted once the upload is done.
+     */
+    static final class SpeculativeUpload {
+        private final String objectKey;
+        private final CompletableFuture<CreateMultipartUploadResponse> response;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private SpeculativeUpload(String objectKey,
+                                  CompletableFuture<CreateMultipartUploadResponse> response) {
+            this.objectKey = objectKey;
+            this.response = response;
+        }
+
+        static SpeculativeUpload start(String objectKey, CreateMultipartUploadRequest request,
+                                       S3Operations operations) {
+            // runs on its own, cancelling the upload must not lose track of it
+            return new SpeculativeUpload(objectKey,
+                operations.createMultipartUpload(request).toFuture());
+        }
+
+        /**
+         * Claim the multipart upload for the given object key.
+         *
+         * @return whether it was initiated for the object key and has not been claimed yet
+         */
+        boolean claim(String objectKey) {
+            return this.objectKey.equals(objectKey) && claimed.compareAndSet(false, true);
+        }
+
+        Mono<CreateMultipartUploadResponse> response() {
+            return Mono.fromFuture(response, true);
+        }
+
+        Mono<Void> abortUnlessClaimed(String bucket, S3Operations operations) {
+            if (!claimed.compareAndSet(false, true)) {
+                return Mono.empty();
+            }
+            return response()
+                // failed to initiate, nothing to abort
+                .onErrorResume((e) -> Mono.empty())
+                .filter((created) -> created.uploadId() != null)
+                .flatMap((created) -> abortMultipartUpload(bucket, objectKey,
+                    created.uploadId(), operations));
+        }
+    }
+
+    /**
+     * Detail of an object in the object storage.
+     *
+     * @param eTag entity tag of the object, null if unknown
+     */
+    record ObjectDetail(UploadState uploadState, Long contentLength, String contentType,
+                        @Nullable String eTag) {
+
+        static ObjectDetail from(UploadState uploadState, HeadObjectResponse response) {
+            return new ObjectDetail(uploadState, response.contentLength(), response.contentType(),
+                response.eTag());
+        }
+    }
+
+    /**
+     * Presigned URLs are cached per ConfigMap version, object key and requested TTL.
+     */
+    record SharedUrlKey(String configMapName, Long configMapVersion, String objectKey,
+                        Duration ttl) {
+
+        @Nullable
+        static SharedUrlKey of(ConfigMap configMap, String objectKey, Duration ttl) {
+            var metadata = configMap.getMetadata();
+            if (metadata == null || metadata.getName() == null || metadata.getVersion() == null) {
+                return null;
+            }
+            return new SharedUrlKey(metadata.getName(), metadata.getVersion(), objectKey, ttl);
+        }
+    }
+
+    record SharedUrl(URI uri, Instant expiration) {
+
+        /**
+         * Whether more than half of the requested lifetime is still left.
+         */
+        boolean isFresh(Duration ttl) {
+            return Instant.now().plus(ttl.dividedBy(2)).isBefore(expiration);
+        }
     }
 
     static class UploadState {
         final S3OsProperties properties;
         final String originalFileName;
+        @Nullable
+        String policyName;
+        /**
+         * ConfigMap of the policy, null if the upload does not belong to a policy.
+         */
+        @Nullable
+        ConfigMap configMap;
         String uploadId;
+        /**
+         * Whether the multipart upload has been completed.
+         */
+        volatile boolean completed;
+        PartSizing partSizing = new PartSizing(MULTIPART_MIN_PART_SIZE, false);
         int partCounter;
-        Map<Integer, CompletedPart> completedParts = new HashMap<>();
-        int buffered = 0;
+        /**
+         * Completed parts sorted by part number, as required by CompleteMultipartUpload.
+         */
+        Map<Integer, CompletedPart> completedParts = new TreeMap<>();
+        /**
+         * Sizes of parts sent but not yet recorded in the session.
+         */
+        final Map<Integer, Long> partSizes = new ConcurrentHashMap<>();
+        /**
+         * Session of a resumable upload, null if the upload cannot be resumed.
+         */
+        @Nullable
+        UploadSession session;
         String contentType;
         String fileName;
         String objectKey;
+        /**
+         * Number of bytes sent to the object storage.
+         */
+        long size;
+        String eTag;
+        /**
+         * Checksums computed while assembling parts, null if the policy does not use checksums.
+         */
+        @Nullable
+        UploadChecksums checksums;
+        /**
+         * Multipart upload initiated ahead of the existence check, null if none.
+         */
+        @Nullable
+        SpeculativeUpload speculativeUpload;
+        /**
+         * Base64 encoded checksum of the whole object, null if unknown.
+         */
+        @Nullable
+        String checksum;
+        /**
+         * Whether the content is hashed to find an existing object with the same content.
+         */
+        boolean deduplicating;
+        /**
+         * SHA-256 of the content, unless the checksums are SHA-256 already.
+         */
+        @Nullable
+        ContentChecksum contentDigest;
+        @Nullable
+        private String contentHash;
+        /**
+         * Whether the upload points at an existing object with the same content.
+         */
+        boolean deduplicated;
         boolean needRemoveMapKey = false;
+        /**
+         * Part buffers of this upload, null if parts are allocated on heap.
+         */
+        @Nullable
+        PartBufferPool.Reservation buffers;
+        /**
+         * Number of bytes received from the client.
+         */
+        long received;
+        /**
+         * Whether parts are staged to disk before being sent.
+         */
+        boolean spilling;
 
         public UploadState(S3OsProperties properties, String fileName, boolean needRandomJudge) {
             this.properties = properties;
@@ -493,6 +1398,106 @@ public class S3OsAttachmentHandler implements AttachmentHandler {
                 .orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
         }
 
+        /**
+         * Compute checksums in the given algorithm while assembling parts.
+         *
+         * @param algorithm checksum algorithm, nothing is computed for {@code none}
+         * @param wholeObject whether the whole object is assembled
+         */
+        void useChecksums(@Nullable S3OsProperties.ChecksumAlgorithm algorithm,
+                          boolean wholeObject) {
+            if (algorithm != null && algorithm != S3OsProperties.ChecksumAlgorithm.none) {
+                checksums = new UploadChecksums(algorithm, wholeObject);
+            }
+        }
+
+        /**
+         * Hash the whole content while assembling parts, to find an existing object with the
+         * same content. Call after {@link #useChecksums}.
+         */
+        void hashContent() {
+            deduplicating = true;
+            if (checksums == null
+                || checksums.algorithm != S3OsProperties.ChecksumAlgorithm.sha256) {
+                contentDigest = ContentChecksum.create(S3OsProperties.ChecksumAlgorithm.sha256);
+            }
+        }
+
+        /**
+         * SHA-256 hex of the content, only known once all parts have been assembled.
+         *
+         * @return content hash, null if the content is not hashed
+         */
+        @Nullable
+        String contentHash() {
+            if (!deduplicating) {
+                return null;
+            }
+            if (contentHash == null) {
+                var sha256 = contentDigest != null ? contentDigest.finish()
+                    : checksums.objectChecksum();
+                contentHash = HexFormat.of().formatHex(Base64.getDecoder().decode(sha256));
+            }
+            return contentHash;
+        }
+
+        /**
+         * Listener computing checksums and the content hash while assembling parts.
+         */
+        @Nullable
+        PartAssembler.Listener assemblyListener() {
+            if (contentDigest == null) {
+                return checksums;
+            }
+            var digest = contentDigest;
+            var partChecksums = checksums;
+            return new PartAssembler.Listener() {
+                @Override
+                public void appended(ByteBuffer bytes) {
+                    digest.update(bytes);
+                    if (partChecksums != null) {
+                        partChecksums.appended(bytes);
+                    }
+                }
+
+                @Override
+                public void completed(ByteBuffer part) {
+                    if (partChecksums != null) {
+                        partChecksums.completed(part);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Number of parts uploaded in parallel, limited by the reserved part buffers.
+         */
+        int partConcurrency() {
+            if (buffers == null || spilling) {
+                return properties.getPartConcurrency();
+            }
+            return Math.max(1, buffers.parts() - 1);
+        }
+
+        /**
+         * Return the buffer of a finished request to the pool. A cancelled request may still be
+         * reading the buffer, so its buffer is left to the garbage collector.
+         */
+        void releaseBuffer(ByteBuffer buffer, SignalType signalType) {
+            if (buffers != null && signalType != SignalType.CANCEL) {
+                buffers.release(buffer);
+            }
+        }
+
+        boolean conditionalWrites() {
+            return Boolean.TRUE.equals(properties.getConditionalWrites());
+        }
+
+        boolean exceedsSpillThreshold(long length) {
+            var threshold = properties.getSpillThreshold();
+            return threshold != null && threshold > 0 && length >= threshold * 1024L * 1024L;
+        }
+
         public String getUploadingMapKey() {
             return properties.getBucket() + "/" + objectKey;
         }
@@ -1,6 +1,7 @@
 package run.halo.s3os;
 
 import org.springframework.stereotype.Component;
+import run.halo.app.extension.SchemeManager;
 import run.halo.app.plugin.BasePlugin;
 import run.halo.app.plugin.PluginContext;
 
@@ -11,15 +12,23 @@ import run.halo.app.plugin.PluginContext;
 @Component
 public class S3OsPlugin extends BasePlugin {
 
-    public S3OsPlugin(PluginContext pluginContext) {
+    private final SchemeManager schemeManager;
+
+    public S3OsPlugin(PluginContext pluginContext, SchemeManager schemeManager) {
         super(pluginContext);
+        this.schemeManager = schemeManager;
     }
 
     @Override
     public void start() {
+        schemeManager.register(UploadSession.class);
+        schemeManager.register(ContentObject.class);
     }
 
     @Override
     public void stop() {
+        schemeManager.unregister(schemeManager.get(UploadSession.class));
+        schemeManager.unregister(schemeManager.get(ContentObject.class));
+        S3OsProperties.clearCache();
     }
 }
@@ -1,10 +1,17 @@
 package run.halo.s3os;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 import org.springframework.util.StringUtils;
 import org.springframework.web.util.UriUtils;
 import run.halo.app.extension.ConfigMap;
@@ -13,6 +20,15 @@ import run.halo.app.infra.utils.JsonUtils;
 @Data
 public class S3OsProperties {
 
+    /**
+     * Parsed properties per ConfigMap name, together with the ConfigMap version they were parsed
+     * from. Properties of deleted policies, secrets included, expire once they are not read
+     * anymore, the rest is dropped when the plugin stops.
+     */
+    private static final Cache<String, VersionedProperties> CACHE = CacheBuilder.newBuilder()
+        .expireAfterAccess(S3ClientPool.IDLE_TIMEOUT)
+        .build();
+
     private String bucket;
 
     private Protocol endpointProtocol = Protocol.https;
@@ -50,8 +66,82 @@ public class S3OsProperties {
 
     private List<urlSuffixItem> urlSuffixes;
 
+    /**
+     * 由 urlSuffixes 编译的查找表，首次使用时创建
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient volatile UrlSuffixLookup urlSuffixLookup;
+
     private String thumbnailParamPattern;
 
+    /**
+     * 分片上传时同时上传的分片数
+     */
+    private Integer partConcurrency = 4;
+
+    /**
+     * 分片大小（MB），文件较大时会自动增大
+     */
+    private Integer partSize = 5;
+
+    /**
+     * S3 客户端引擎
+     */
+    private ClientEngine clientEngine = ClientEngine.sync;
+
+    /**
+     * 上传时计算的校验和算法，校验和随每个分片发送并保存在附件注解中
+     */
+    private ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.none;
+
+    /**
+     * 是否对上传的文件去重，内容相同的文件共用同一个对象
+     */
+    private Boolean deduplicateUploads = false;
+
+    /**
+     * 是否使用条件写入（If-None-Match）防止覆盖已存在的文件，代替上传前的 HEAD 请求
+     */
+    private Boolean conditionalWrites = false;
+
+    /**
+     * 上传完成后是否通过 HEAD 请求校验对象
+     */
+    private Boolean verifyUploadedObject = false;
+
+    /**
+     * 是否保存分片上传会话，以便上传中断后续传
+     */
+    private Boolean resumableUpload = false;
+
+    /**
+     * 未完成的分片上传超过此时长（小时）后将被中止并清理已上传的分片，0 表示不清理
+     */
+    private Integer abortIncompleteUploadsAfter = 0;
+
+    /**
+     * 超过此大小（MB）的上传将分片暂存到磁盘，0 表示不启用
+     */
+    private Integer spillThreshold = 0;
+
+    /**
+     * 分片暂存目录，为空时使用系统临时目录
+     */
+    private String spillDirectory;
+
+    /**
+     * 暂存目录最多占用的磁盘空间（MB）
+     */
+    private Integer spillMaxSize = 10240;
+
+    /**
+     * 遗留暂存文件的保留时长（小时），超过后将被清理
+     */
+    private Integer spillFileMaxAge = 24;
+
     @Data
     @AllArgsConstructor
     @NoArgsConstructor
@@ -81,6 +171,18 @@ public class S3OsProperties {
         http, https
     }
 
+    /**
+     * sync: blocking client, each request occupies a thread until it completes.
+     * async: non-blocking client, requests do not occupy any thread while waiting.
+     */
+    public enum ClientEngine {
+        sync, async
+    }
+
+    public enum ChecksumAlgorithm {
+        none, crc32c, sha256
+    }
+
     public void setDomain(String domain) {
         this.domain = UrlUtils.removeHttpPrefix(domain);
     }
@@ -110,6 +212,66 @@ public class S3OsProperties {
         }
     }
 
+    public void setPartConcurrency(String partConcurrency) {
+        try {
+            int concurrency = Integer.parseInt(partConcurrency);
+            if (concurrency >= 1 && concurrency <= 16) {
+                this.partConcurrency = concurrency;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    public void setPartSize(String partSize) {
+        try {
+            int size = Integer.parseInt(partSize);
+            if (size >= 5 && size <= 1024) {
+                this.partSize = size;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    public void setSpillThreshold(String spillThreshold) {
+        try {
+            int threshold = Integer.parseInt(spillThreshold);
+            if (threshold >= 0) {
+                this.spillThreshold = threshold;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    public void setSpillMaxSize(String spillMaxSize) {
+        try {
+            int maxSize = Integer.parseInt(spillMaxSize);
+            if (maxSize >= 1) {
+                this.spillMaxSize = maxSize;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    public void setSpillFileMaxAge(String spillFileMaxAge) {
+        try {
+            int maxAge = Integer.parseInt(spillFileMaxAge);
+            if (maxAge >= 1) {
+                this.spillFileMaxAge = maxAge;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    public void setAbortIncompleteUploadsAfter(String abortIncompleteUploadsAfter) {
+        try {
+            int hours = Integer.parseInt(abortIncompleteUploadsAfter);
+            if (hours >= 0) {
+                this.abortIncompleteUploadsAfter = hours;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
     public void setRegion(String region) {
         if (!StringUtils.hasText(region)) {
             this.region = "Auto";
@@ -122,6 +284,27 @@ public class S3OsProperties {
         this.endpoint = UrlUtils.removeHttpPrefix(endpoint);
     }
 
+    public void setUrlSuffixes(List<urlSuffixItem> urlSuffixes) {
+        this.urlSuffixes = urlSuffixes;
+        this.urlSuffixLookup = null;
+    }
+
+    /**
+     * Find the URL suffix of the file, the same one as
+     * {@link UrlUtils#findUrlSuffix(List, String)} finds in {@link #getUrlSuffixes()}.
+     *
+     * @param fileName file name
+     * @return URL suffix, null if none matches
+     */
+    public String findUrlSuffix(String fileName) {
+        var lookup = urlSuffixLookup;
+        if (lookup == null) {
+            lookup = UrlSuffixLookup.compile(urlSuffixes);
+            urlSuffixLookup = lookup;
+        }
+        return lookup.find(fileName);
+    }
+
     public String toObjectURL(String objectKey) {
         String objectURL;
         if (!StringUtils.hasText(this.getDomain())) {
@@ -138,8 +321,42 @@ public class S3OsProperties {
         return UriUtils.encodePath(objectURL, StandardCharsets.UTF_8);
     }
 
+    /**
+     * Convert the policy ConfigMap to properties. Properties are parsed once per ConfigMap
+     * version and shared, so they must not be modified.
+     *
+     * @param configMap policy ConfigMap
+     * @return properties
+     */
     public static S3OsProperties convertFrom(ConfigMap configMap) {
+        var metadata = configMap.getMetadata();
+        if (metadata == null || metadata.getName() == null || metadata.getVersion() == null) {
+            return parse(configMap);
+        }
+        var version = metadata.getVersion();
+        var cached = CACHE.getIfPresent(metadata.getName());
+        if (cached != null && cached.version().equals(version)) {
+            return cached.properties();
+        }
+        var properties = parse(configMap);
+        // a slow reader of an old version must not replace a newer one
+        CACHE.asMap().merge(metadata.getName(), new VersionedProperties(version, properties),
+            (existing, parsed) -> parsed.version() >= existing.version() ? parsed : existing);
+        return properties;
+    }
+
+    /**
+     * Drop all parsed properties.
+     */
+    static void clearCache() {
+        CACHE.invalidateAll();
+    }
+
+    private static S3OsProperties parse(ConfigMap configMap) {
         var settingJson = configMap.getData().getOrDefault("default", "{}");
         return JsonUtils.jsonToObject(settingJson, S3OsProperties.class);
     }
+
+    private record VersionedProperties(Long version, S3OsProperties properties) {
+    }
 }
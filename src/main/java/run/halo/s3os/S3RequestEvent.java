@@ -0,0 +1,70 @@
+package run.halo.s3os;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import reactor.core.publisher.Mono;
+
+/**
+ * JDK Flight Recorder event of one S3 request, from subscription until the response arrives or
+ * the request fails or is cancelled. Emitted by {@link MeteredS3Operations}, and not even created
+ * unless a recording enables it.
+ */
+@Name("run.halo.s3os.S3Request")
+@Label("S3 Request")
+@Category({"Halo", "S3"})
+@Description("A request sent to the object storage.")
+final class S3RequestEvent extends Event {
+
+    private static final EventType EVENT_TYPE = EventType.getEventType(S3RequestEvent.class);
+
+    @Label("Operation")
+    String operation;
+
+    @Label("ConfigMap")
+    String configMap;
+
+    @Label("Bucket")
+    String bucket;
+
+    @Label("Object Key")
+    @Description("Object key, or key prefix of listings")
+    String objectKey;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Outcome")
+    String outcome;
+
+    /**
+     * Record the request once the returned {@link Mono} is subscribed.
+     */
+    static <T> Mono<T> record(String operation, String configMap, String bucket,
+                              String objectKey, long bytes, Mono<T> request) {
+        return Mono.defer(() -> {
+            if (!EVENT_TYPE.isEnabled()) {
+                return request;
+            }
+            var event = new S3RequestEvent();
+            event.begin();
+            return request.doFinally((signalType) -> {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = operation;
+                    event.configMap = configMap;
+                    event.bucket = bucket;
+                    event.objectKey = objectKey;
+                    event.bytes = bytes;
+                    event.outcome = S3Metrics.outcome(signalType);
+                    event.commit();
+                }
+            });
+        });
+    }
+}
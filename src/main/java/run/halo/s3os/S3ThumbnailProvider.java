@@ -8,6 +8,7 @@ import com.google.common.cache.CacheBuilder;
 import lombok.Builder;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
@@ -27,6 +28,7 @@ public class S3ThumbnailProvider implements ThumbnailProvider {
 
     private final ReactiveExtensionClient client;
     private final S3LinkService s3LinkService;
+    private final S3Metrics metrics;
 
     @Override
     public Mono<URI> generate(ThumbnailContext thumbnailContext) {
@@ -63,17 +65,29 @@ public class S3ThumbnailProvider implements ThumbnailProvider {
     }
 
     private Mono<S3PropsCacheValue> getCacheValue(String imageUrl) {
-        return Flux.fromIterable(s3PropsCache.asMap().entrySet())
-            .filter(entry -> imageUrl.startsWith(entry.getKey()))
-            .next()
-            .map(Map.Entry::getValue)
+        return Mono.fromSupplier(() -> findByPrefix(s3PropsCache.asMap(), imageUrl))
+            .doOnNext((cacheValue) -> metrics.thumbnailCache(true))
             .switchIfEmpty(Mono.defer(() -> listAllS3ObjectDomain()
+                .doOnSubscribe((subscription) -> metrics.thumbnailCache(false))
                 .filter(entry -> imageUrl.startsWith(entry.getKey()))
                 .map(Map.Entry::getValue)
                 .next()
             ));
     }
 
+    /**
+     * Find the cached value whose object domain the image URL starts with.
+     */
+    @Nullable
+    static S3PropsCacheValue findByPrefix(Map<String, S3PropsCacheValue> cache, String imageUrl) {
+        for (var entry : cache.entrySet()) {
+            if (imageUrl.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
     @Builder
     record S3PropsCacheValue(String pattern, String configMapName) {
     }
@@ -0,0 +1,101 @@
+package run.halo.s3os;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.springframework.lang.Nullable;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumType;
+
+/**
+ * Checksums of the parts of one upload and of the whole object, computed while the parts are
+ * assembled. The bytes are still in cache when they are added, and the SDK does not have to read
+ * the part buffers again to compute checksums of its own.
+ */
+final class UploadChecksums implements PartAssembler.Listener {
+
+    final S3OsProperties.ChecksumAlgorithm algorithm;
+
+    @Nullable
+    private final ContentChecksum object;
+
+    private ContentChecksum part;
+
+    @Nullable
+    private String objectChecksum;
+
+    /**
+     * Checksums of assembled parts not yet taken, keyed by part buffer.
+     */
+    private final Map<ByteBuffer, String> partChecksums =
+        Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /**
+     * Create checksums of an upload.
+     *
+     * @param algorithm checksum algorithm, must not be {@code none}
+     * @param wholeObject whether the assembled content is the whole object, a resumed upload
+     * only assembles the rest of the object
+     */
+    UploadChecksums(S3OsProperties.ChecksumAlgorithm algorithm, boolean wholeObject) {
+        this.algorithm = algorithm;
+        this.object = wholeObject ? ContentChecksum.create(algorithm) : null;
+        this.part = ContentChecksum.create(algorithm);
+    }
+
+    @Override
+    public void appended(ByteBuffer bytes) {
+        if (object != null) {
+            object.update(bytes);
+        }
+        part.update(bytes);
+    }
+
+    @Override
+    public void completed(ByteBuffer buffer) {
+        partChecksums.put(buffer, part.finish());
+        part = ContentChecksum.create(algorithm);
+    }
+
+    ChecksumAlgorithm sdkAlgorithm() {
+        return switch (algorithm) {
+            case crc32c -> ChecksumAlgorithm.CRC32_C;
+            case sha256 -> ChecksumAlgorithm.SHA256;
+            case none -> throw new IllegalStateException("No checksum algorithm chosen.");
+        };
+    }
+
+    /**
+     * S3 can combine CRC32C checksums of parts into the checksum of the whole object, but only
+     * keeps checksums of part checksums for SHA-256.
+     */
+    ChecksumType checksumType() {
+        return algorithm == S3OsProperties.ChecksumAlgorithm.crc32c
+            ? ChecksumType.FULL_OBJECT : ChecksumType.COMPOSITE;
+    }
+
+    /**
+     * Take the checksum of an assembled part.
+     *
+     * @param buffer part buffer as emitted by the assembler
+     * @return base64 encoded checksum, null if the part is unknown
+     */
+    @Nullable
+    String take(ByteBuffer buffer) {
+        return partChecksums.remove(buffer);
+    }
+
+    /**
+     * Checksum of the whole object, only known once all parts have been assembled.
+     *
+     * @return base64 encoded checksum, null if only a part of the object was assembled
+     */
+    @Nullable
+    synchronized String objectChecksum() {
+        if (objectChecksum == null && object != null) {
+            objectChecksum = object.finish();
+        }
+        return objectChecksum;
+    }
+}
@@ -0,0 +1,79 @@
+package run.halo.s3os;
+
+import static io.swagger.v3.oas.annotations.media.Schema.RequiredMode.REQUIRED;
+
+import io.swagger.v3.oas.annotations.media.Schema;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import run.halo.app.extension.AbstractExtension;
+import run.halo.app.extension.GVK;
+
+/**
+ * A multipart upload that has not been completed yet. Sessions are only kept for policies with
+ * resumable uploads enabled, and deleted once the upload is completed.
+ */
+@Data
+@EqualsAndHashCode(callSuper = true)
+@GVK(group = "s3os.halo.run", version = "v1alpha1", kind = "UploadSession",
+    plural = "uploadsessions", singular = "uploadsession")
+public class UploadSession extends AbstractExtension {
+
+    @Schema(requiredMode = REQUIRED)
+    private Spec spec;
+
+    private Status status;
+
+    @Data
+    public static class Spec {
+        @Schema(requiredMode = REQUIRED)
+        private String policyName;
+
+        @Schema(requiredMode = REQUIRED)
+        private String bucket;
+
+        @Schema(requiredMode = REQUIRED)
+        private String objectKey;
+
+        @Schema(requiredMode = REQUIRED)
+        private String uploadId;
+
+        private String fileName;
+
+        private String contentType;
+
+        /**
+         * Size of the first part.
+         */
+        @Schema(requiredMode = REQUIRED)
+        private Integer partSize;
+
+        /**
+         * Whether parts grow with the part number, see {@link PartSizing}.
+         */
+        private Boolean growingPartSize;
+
+        /**
+         * Checksum algorithm of the parts, null if parts have no checksums.
+         */
+        private String checksumAlgorithm;
+
+        /**
+         * Name of the user who started the upload, the only one who may resume it.
+         */
+        private String ownerName;
+    }
+
+    @Data
+    public static class Status {
+        /**
+         * Number of parts uploaded without gaps from the first part.
+         */
+        private Integer uploadedParts = 0;
+
+        /**
+         * Number of bytes uploaded without gaps from the start of the file, which is the offset
+         * to resume from.
+         */
+        private Long uploadedSize = 0L;
+    }
+}
@@ -0,0 +1,33 @@
+package run.halo.s3os;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import run.halo.app.core.extension.attachment.Attachment;
+import run.halo.app.plugin.ApiVersion;
+
+/**
+ * Upload sessions are listed and fetched through the extension API of {@link UploadSession}, the
+ * {@code status.uploadedSize} of a session is the offset to resume from.
+ */
+@ApiVersion("s3os.halo.run/v1alpha1")
+@RestController
+@RequiredArgsConstructor
+public class UploadSessionController {
+    private final UploadSessionService uploadSessionService;
+
+    @PostMapping(value = "/uploadsessions/{name}/resume",
+        consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public Mono<Attachment> resume(@PathVariable("name") String name,
+        @RequestPart("file") FilePart file,
+        @RequestParam(name = "offset", required = false, defaultValue = "0") Long offset,
+        @RequestParam(name = "groupName", required = false) String groupName) {
+        return uploadSessionService.resume(name, file.content(), offset, groupName);
+    }
+}
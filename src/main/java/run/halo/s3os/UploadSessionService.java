@@ -0,0 +1,21 @@
+package run.halo.s3os;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import run.halo.app.core.extension.attachment.Attachment;
+
+public interface UploadSessionService {
+
+    /**
+     * Resume an interrupted upload and create its attachment.
+     *
+     * @param name name of the upload session
+     * @param content content of the file starting at the offset
+     * @param offset offset of the content in the file, at most the uploaded size of the session
+     * @param groupName attachment group, optional
+     * @return created attachment
+     */
+    Mono<Attachment> resume(String name, Flux<DataBuffer> content, long offset,
+                            String groupName);
+}
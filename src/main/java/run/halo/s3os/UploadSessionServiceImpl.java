@@ -0,0 +1,78 @@
+package run.halo.s3os;
+
+import java.util.Objects;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.ReactiveSecurityContextHolder;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import run.halo.app.core.extension.attachment.Attachment;
+import run.halo.app.core.extension.attachment.Policy;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.ReactiveExtensionClient;
+
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UploadSessionServiceImpl implements UploadSessionService {
+    private final ReactiveExtensionClient client;
+    private final S3OsAttachmentHandler handler;
+    private final S3ClientPool clientPool;
+
+    @Override
+    public Mono<Attachment> resume(String name, Flux<DataBuffer> content, long offset,
+                                   String groupName) {
+        return authenticationConsumer(authentication -> client.get(UploadSession.class, name)
+            .doOnNext((session) -> {
+                // a session without an owner could be resumed by anybody
+                var ownerName = session.getSpec().getOwnerName();
+                if (StringUtils.isBlank(ownerName)
+                    || !Objects.equals(ownerName, authentication.getName())) {
+                    throw new ResponseStatusException(HttpStatus.FORBIDDEN,
+                        "The upload session belongs to another user.");
+                }
+            })
+            .flatMap((session) -> client.get(Policy.class, session.getSpec().getPolicyName())
+                .flatMap((policy) -> client.get(ConfigMap.class,
+                    policy.getSpec().getConfigMapName()))
+                .flatMap((configMap) -> {
+                    var properties = S3OsProperties.convertFrom(configMap);
+                    if (!Objects.equals(properties.getBucket(), session.getSpec().getBucket())) {
+                        return Mono.error(new ServerWebInputException(
+                            "存储策略的 Bucket 已变更，无法续传。"));
+                    }
+                    return Mono.using(() -> clientPool.acquire(configMap, properties),
+                            (lease) -> handler.resumeUpload(session, properties, content, offset,
+                                lease.operations()),
+                            S3ClientPool.Lease::close)
+                        .map((objectDetail) -> handler.buildAttachment(properties, objectDetail));
+                })
+                .doOnNext((attachment) -> {
+                    var spec = attachment.getSpec();
+                    spec.setOwnerName(authentication.getName());
+                    spec.setPolicyName(session.getSpec().getPolicyName());
+                    if (StringUtils.isNotBlank(groupName)) {
+                        spec.setGroupName(groupName);
+                    }
+                }))
+            .flatMap(client::create))
+            .onErrorMap(S3ExceptionHandler::map);
+    }
+
+    private <T> Mono<T> authenticationConsumer(Function<Authentication, Mono<T>> func) {
+        return ReactiveSecurityContextHolder.getContext()
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.UNAUTHORIZED,
+                "Authentication required.")))
+            .map(SecurityContext::getAuthentication)
+            .flatMap(func);
+    }
+}
@@ -0,0 +1,84 @@
+package run.halo.s3os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.lang.Nullable;
+
+/**
+ * URL suffixes of a policy compiled into a table keyed by lower-cased file suffix. Matches the
+ * same URL suffix as {@link UrlUtils#findUrlSuffix(List, String)}: if several items match a file
+ * name, the first item wins.
+ */
+final class UrlSuffixLookup {
+
+    static final UrlSuffixLookup EMPTY = new UrlSuffixLookup(Map.of(), List.of());
+
+    /**
+     * Index of the first item per file suffix.
+     */
+    private final Map<String, Integer> itemIndexes;
+
+    private final List<String> urlSuffixes;
+
+    private final boolean dottedSuffixes;
+
+    private UrlSuffixLookup(Map<String, Integer> itemIndexes, List<String> urlSuffixes) {
+        this.itemIndexes = itemIndexes;
+        this.urlSuffixes = urlSuffixes;
+        this.dottedSuffixes = itemIndexes.keySet().stream().anyMatch(key -> key.contains("."));
+    }
+
+    static UrlSuffixLookup compile(@Nullable List<S3OsProperties.urlSuffixItem> items) {
+        if (items == null || items.isEmpty()) {
+            return EMPTY;
+        }
+        var itemIndexes = new HashMap<String, Integer>();
+        var urlSuffixes = new ArrayList<String>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            var item = items.get(i);
+            urlSuffixes.add(item.getUrlSuffix());
+            if (item.getFileSuffix() == null) {
+                continue;
+            }
+            for (var suffix : item.getFileSuffix().split(",")) {
+                itemIndexes.putIfAbsent(suffix.trim().toLowerCase(), i);
+            }
+        }
+        return new UrlSuffixLookup(Map.copyOf(itemIndexes), urlSuffixes);
+    }
+
+    /**
+     * Find the URL suffix of the file.
+     *
+     * @param fileName file name
+     * @return URL suffix, null if no item matches
+     */
+    @Nullable
+    String find(String fileName) {
+        if (StringUtils.isBlank(fileName) || itemIndexes.isEmpty()) {
+            return null;
+        }
+        var lowerCaseName = fileName.toLowerCase();
+        var lastDot = lowerCaseName.lastIndexOf('.');
+        if (lastDot < 0) {
+            return null;
+        }
+        if (!dottedSuffixes) {
+            var index = itemIndexes.get(lowerCaseName.substring(lastDot + 1));
+            return index == null ? null : urlSuffixes.get(index);
+        }
+        // suffixes like tar.gz, every dot may start one
+        Integer first = null;
+        for (int dot = lowerCaseName.indexOf('.'); dot >= 0;
+             dot = lowerCaseName.indexOf('.', dot + 1)) {
+            var index = itemIndexes.get(lowerCaseName.substring(dot + 1));
+            if (index != null && (first == null || index < first)) {
+                first = index;
+            }
+        }
+        return first == null ? null : urlSuffixes.get(first);
+    }
+}
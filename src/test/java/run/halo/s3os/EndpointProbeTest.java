@@ -0,0 +1,70 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class EndpointProbeTest {
+
+    FakeS3Server server;
+
+    S3ClientPool clientPool;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = FakeS3Server.start().keepContent(false);
+        clientPool = new S3ClientPool(new S3Metrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        clientPool.destroy();
+        server.close();
+    }
+
+    @Test
+    void recommendLargerPartsAndConcurrencyForSlowRequests() {
+        server.latency(Duration.ofMillis(10)).bandwidth(64L * EndpointProbe.MB);
+        var properties = server.properties("halo");
+
+        EndpointProbe.Report report;
+        try (var lease = clientPool.acquireDetached(properties)) {
+            report = new EndpointProbe(properties, lease.operations(), 5).run().block();
+        }
+
+        assertNull(report.tlsHandshakeMillis());
+        assertTrue(report.headMillis() >= 10);
+        assertTrue(report.putMillis() >= 10);
+        assertTrue(report.partOverheadMillis() > 0);
+        assertFalse(report.multipart().isEmpty());
+        assertTrue(report.recommendedPartSize() >= 8);
+        assertTrue(report.recommendedPartSize() <= 64);
+        assertTrue(report.recommendedPartConcurrency() >= 4);
+        assertTrue(report.recommendedPartConcurrency() <= 16);
+        // small objects deleted and the multipart upload aborted
+        assertEquals(0, server.objectCount());
+        assertEquals(0, server.uploadsInProgress());
+    }
+
+    @Test
+    void probeWithoutPermissionToListBucket() {
+        server.forbidMissingObjects(true);
+        var properties = server.properties("halo");
+
+        EndpointProbe.Report report;
+        try (var lease = clientPool.acquireDetached(properties)) {
+            report = new EndpointProbe(properties, lease.operations(), 5).run().block();
+        }
+
+        assertTrue(report.headMillis() >= 0);
+        assertEquals(0, server.objectCount());
+    }
+}
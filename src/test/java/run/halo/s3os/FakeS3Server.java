@@ -0,0 +1,677 @@
+package run.halo.s3os;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import org.springframework.lang.Nullable;
+
+/**
+ * S3-compatible stand-in for tests, served by the JDK HTTP server on a random local port.
+ * <p>
+ * It understands path-style requests of the operations in {@link S3Operations}: objects, multipart
+ * uploads, listings and conditional writes with {@code If-None-Match: *}. CRC32C and SHA-256
+ * checksums sent along are verified. Signatures are not checked, and request bodies must not use
+ * aws-chunked encoding, which the plugin disables.
+ * <p>
+ * Latency, bandwidth and errors can be injected to see how uploads behave against slow or flaky
+ * endpoints. Content is kept in memory unless {@link #keepContent(boolean)} is turned off, e.g.
+ * for benchmarks where only sizes and digests matter.
+ */
+final class FakeS3Server implements AutoCloseable {
+
+    static final String REGION = "us-east-1";
+
+    private static final DateTimeFormatter HTTP_DATE =
+        DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /**
+     * Key is bucket/objectKey.
+     */
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+    /**
+     * Key is upload ID.
+     */
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+
+    private volatile Duration latency = Duration.ZERO;
+
+    private volatile long bandwidth;
+
+    private volatile double errorRate;
+
+    private volatile boolean keepContent = true;
+
+    private volatile boolean forbidMissingObjects;
+
+    private FakeS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+    static FakeS3Server start() throws IOException {
+        var fake = new FakeS3Server();
+        fake.server.start();
+        return fake;
+    }
+
+    /**
+     * Properties of a policy using this server, with path-style access over HTTP.
+     */
+    S3OsProperties properties(String bucket) {
+        var properties = new S3OsProperties();
+        properties.setBucket(bucket);
+        properties.setEndpointProtocol(S3OsProperties.Protocol.http);
+        properties.setEndpoint("127.0.0.1:" + server.getAddress().getPort());
+        properties.setEnablePathStyleAccess(true);
+        properties.setRegion(REGION);
+        properties.setAccessKey("access-key");
+        properties.setAccessSecret("access-secret");
+        return properties;
+    }
+
+    /**
+     * Delay before each request is handled.
+     */
+    FakeS3Server latency(Duration latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Bytes per second each request body is read with, 0 for no limit.
+     */
+    FakeS3Server bandwidth(long bytesPerSecond) {
+        this.bandwidth = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Share of requests answered with {@code 503 SlowDown}, from 0 to 1.
+     */
+    FakeS3Server errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Answer requests for missing objects with {@code 403}, as object storages do for credentials
+     * without the permission to list the bucket.
+     */
+    FakeS3Server forbidMissingObjects(boolean forbidMissingObjects) {
+        this.forbidMissingObjects = forbidMissingObjects;
+        return this;
+    }
+
+    FakeS3Server keepContent(boolean keepContent) {
+        this.keepContent = keepContent;
+        return this;
+    }
+
+    @Nullable
+    byte[] content(String bucket, String key) {
+        var object = objects.get(bucket + "/" + key);
+        return object == null ? null : object.content();
+    }
+
+    boolean exists(String bucket, String key) {
+        return objects.containsKey(bucket + "/" + key);
+    }
+
+    int objectCount() {
+        return objects.size();
+    }
+
+    int uploadsInProgress() {
+        return uploads.size();
+    }
+
+    /**
+     * Number of requests of the operation, e.g. {@code PutObject} or {@code UploadPart}.
+     */
+    long requestCount(String operation) {
+        var count = requestCounts.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    void clear() {
+        objects.clear();
+        uploads.clear();
+        requestCounts.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!latency.isZero()) {
+                Thread.sleep(latency.toMillis());
+            }
+            var path = exchange.getRequestURI().getPath().substring(1);
+            var slash = path.indexOf('/');
+            var bucket = slash < 0 ? path : path.substring(0, slash);
+            var key = slash < 0 ? "" : path.substring(slash + 1);
+            var query = parseQuery(exchange.getRequestURI().getRawQuery());
+            var operation = operation(exchange.getRequestMethod(), key, query);
+            requestCounts.computeIfAbsent(operation, name -> new LongAdder()).increment();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+                sendError(exchange, 503, "SlowDown", "Injected error.");
+                return;
+            }
+            switch (operation) {
+                case "HeadObject" -> headObject(exchange, bucket, key);
+                case "GetObject" -> getObject(exchange, bucket, key);
+                case "PutObject" -> putObject(exchange, bucket, key);
+                case "DeleteObject" -> deleteObject(exchange, bucket, key);
+                case "CreateMultipartUpload" -> createMultipartUpload(exchange, bucket, key);
+                case "UploadPart" -> uploadPart(exchange, query);
+                case "CompleteMultipartUpload" -> completeMultipartUpload(exchange, query);
+                case "AbortMultipartUpload" -> abortMultipartUpload(exchange, query);
+                case "ListParts" -> listParts(exchange, query);
+                case "ListObjectsV2" -> listObjects(exchange, bucket, query);
+                case "ListMultipartUploads" -> listMultipartUploads(exchange, bucket, query);
+                default -> sendError(exchange, 501, "NotImplemented", operation);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError", e.toString());
+        }
+    }
+
+    private static String operation(String method, String key, Map<String, String> query) {
+        if (key.isEmpty()) {
+            if (method.equals("GET") && query.containsKey("uploads")) {
+                return "ListMultipartUploads";
+            }
+            return method.equals("GET") ? "ListObjectsV2" : method + " bucket";
+        }
+        var uploadId = query.containsKey("uploadId");
+        return switch (method) {
+            case "HEAD" -> "HeadObject";
+            case "GET" -> uploadId ? "ListParts" : "GetObject";
+            case "PUT" -> uploadId ? "UploadPart" : "PutObject";
+            case "DELETE" -> uploadId ? "AbortMultipartUpload" : "DeleteObject";
+            case "POST" -> query.containsKey("uploads") ? "CreateMultipartUpload"
+                : uploadId ? "CompleteMultipartUpload" : "POST object";
+            default -> method + " object";
+        };
+    }
+
+    private void headObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        var object = objects.get(bucket + "/" + key);
+        if (object == null) {
+            exchange.sendResponseHeaders(forbidMissingObjects ? 403 : 404, -1);
+            return;
+        }
+        var headers = exchange.getResponseHeaders();
+        headers.set("Content-Length", String.valueOf(object.size()));
+        objectHeaders(exchange, object);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key) throws IOException {
+        var object = objects.get(bucket + "/" + key);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        if (object.content() == null) {
+            sendError(exchange, 501, "NotImplemented", "Content was not kept.");
+            return;
+        }
+        objectHeaders(exchange, object);
+        exchange.sendResponseHeaders(200, object.size());
+        exchange.getResponseBody().write(object.content());
+    }
+
+    private void objectHeaders(HttpExchange exchange, StoredObject object) {
+        var headers = exchange.getResponseHeaders();
+        headers.set("ETag", object.eTag());
+        headers.set("Last-Modified", HTTP_DATE.format(object.lastModified()));
+        if (object.contentType() != null) {
+            headers.set("Content-Type", object.contentType());
+        }
+        var checksumMode = exchange.getRequestHeaders().getFirst("x-amz-checksum-mode");
+        if ("ENABLED".equalsIgnoreCase(checksumMode)) {
+            object.checksums().forEach(headers::set);
+        }
+    }
+
+    private void putObject(HttpExchange exchange, String bucket, String key)
+        throws IOException, InterruptedException {
+        var body = readBody(exchange);
+        if (body.badDigest() != null) {
+            sendError(exchange, 400, "BadDigest", body.badDigest());
+            return;
+        }
+        var object = new StoredObject(body.size(), body.content(), quote(body.md5Hex()),
+            exchange.getRequestHeaders().getFirst("Content-Type"), Instant.now(),
+            body.checksums());
+        var id = bucket + "/" + key;
+        if ("*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            if (objects.putIfAbsent(id, object) != null) {
+                sendError(exchange, 412, "PreconditionFailed",
+                    "At least one of the pre-conditions you specified did not hold");
+                return;
+            }
+        } else {
+            objects.put(id, object);
+        }
+        exchange.getResponseHeaders().set("ETag", object.eTag());
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void deleteObject(HttpExchange exchange, String bucket, String key)
+        throws IOException {
+        objects.remove(bucket + "/" + key);
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void createMultipartUpload(HttpExchange exchange, String bucket, String key)
+        throws IOException {
+        var upload = new Upload(bucket, key, "upload-" + uploadIds.incrementAndGet(),
+            exchange.getRequestHeaders().getFirst("Content-Type"), Instant.now());
+        uploads.put(upload.uploadId, upload);
+        sendXml(exchange, "<InitiateMultipartUploadResult>"
+            + element("Bucket", bucket)
+            + element("Key", key)
+            + element("UploadId", upload.uploadId)
+            + "</InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<String, String> query)
+        throws IOException, InterruptedException {
+        var upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        var body = readBody(exchange);
+        if (body.badDigest() != null) {
+            sendError(exchange, 400, "BadDigest", body.badDigest());
+            return;
+        }
+        var part = new StoredPart(Integer.parseInt(query.get("partNumber")), body.size(),
+            body.content(), body.md5(), quote(body.md5Hex()), Instant.now(), body.checksums());
+        upload.parts.put(part.partNumber(), part);
+        exchange.getResponseHeaders().set("ETag", part.eTag());
+        body.checksums().forEach(exchange.getResponseHeaders()::set);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, Map<String, String> query)
+        throws IOException {
+        var upload = uploads.get(query.get("uploadId"));
+        var request = new String(exchange.getRequestBody().readAllBytes(),
+            StandardCharsets.UTF_8);
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        var parts = new ArrayList<StoredPart>();
+        var matcher = PART_NUMBER.matcher(request);
+        while (matcher.find()) {
+            var part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart", "Part " + matcher.group(1)
+                    + " has not been uploaded.");
+                return;
+            }
+            parts.add(part);
+        }
+        long size = 0;
+        var content = keepContent ? new ByteArrayOutputStream() : null;
+        var md5 = md5();
+        for (var part : parts) {
+            size += part.size();
+            md5.update(part.md5());
+            if (content != null && part.content() != null) {
+                content.writeBytes(part.content());
+            }
+        }
+        var eTag = quote(HexFormat.of().formatHex(md5.digest()) + "-" + parts.size());
+        var checksums = new HashMap<String, String>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            var lowerCaseName = name.toLowerCase();
+            if (isChecksumHeader(lowerCaseName)) {
+                checksums.put(lowerCaseName, values.get(0));
+            }
+        });
+        var object = new StoredObject(size, content == null ? null : content.toByteArray(),
+            eTag, upload.contentType, Instant.now(), checksums);
+        var id = upload.bucket + "/" + upload.key;
+        if ("*".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            if (objects.putIfAbsent(id, object) != null) {
+                sendError(exchange, 412, "PreconditionFailed",
+                    "At least one of the pre-conditions you specified did not hold");
+                return;
+            }
+        } else {
+            objects.put(id, object);
+        }
+        uploads.remove(upload.uploadId);
+        sendXml(exchange, "<CompleteMultipartUploadResult>"
+            + element("Bucket", upload.bucket)
+            + element("Key", upload.key)
+            + element("ETag", eTag)
+            + "</CompleteMultipartUploadResult>");
+    }
+
+    private void abortMultipartUpload(HttpExchange exchange, Map<String, String> query)
+        throws IOException {
+        if (uploads.remove(query.get("uploadId")) == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private void listParts(HttpExchange exchange, Map<String, String> query) throws IOException {
+        var upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+            return;
+        }
+        var xml = new StringBuilder("<ListPartsResult>")
+            .append(element("Bucket", upload.bucket))
+            .append(element("Key", upload.key))
+            .append(element("UploadId", upload.uploadId))
+            .append(element("IsTruncated", "false"));
+        upload.parts.values().forEach(part -> {
+            xml.append("<Part>")
+                .append(element("PartNumber", String.valueOf(part.partNumber())))
+                .append(element("LastModified", part.lastModified().toString()))
+                .append(element("ETag", part.eTag()))
+                .append(element("Size", String.valueOf(part.size())));
+            part.checksums().forEach((name, value) -> xml.append(
+                element(checksumElement(name), value)));
+            xml.append("</Part>");
+        });
+        sendXml(exchange, xml.append("</ListPartsResult>").toString());
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query)
+        throws IOException {
+        var prefix = query.getOrDefault("prefix", "");
+        var maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        var after = query.getOrDefault("continuation-token", query.get("start-after"));
+        var from = bucket + "/" + (after == null ? prefix : after);
+        var contents = new StringBuilder();
+        var count = 0;
+        String lastKey = null;
+        var truncated = false;
+        for (var entry : objects.tailMap(from, after == null).entrySet()) {
+            if (!entry.getKey().startsWith(bucket + "/" + prefix)) {
+                break;
+            }
+            var key = entry.getKey().substring(bucket.length() + 1);
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            var object = entry.getValue();
+            contents.append("<Contents>")
+                .append(element("Key", key))
+                .append(element("LastModified", object.lastModified().toString()))
+                .append(element("ETag", object.eTag()))
+                .append(element("Size", String.valueOf(object.size())))
+                .append(element("StorageClass", "STANDARD"))
+                .append("</Contents>");
+            lastKey = key;
+            count++;
+        }
+        var xml = new StringBuilder("<ListBucketResult>")
+            .append(element("Name", bucket))
+            .append(element("Prefix", prefix))
+            .append(element("KeyCount", String.valueOf(count)))
+            .append(element("MaxKeys", String.valueOf(maxKeys)))
+            .append(element("IsTruncated", String.valueOf(truncated)));
+        if (truncated) {
+            xml.append(element("NextContinuationToken", lastKey));
+        }
+        sendXml(exchange, xml.append(contents).append("</ListBucketResult>").toString());
+    }
+
+    private void listMultipartUploads(HttpExchange exchange, String bucket,
+                                      Map<String, String> query) throws IOException {
+        var prefix = query.getOrDefault("prefix", "");
+        var xml = new StringBuilder("<ListMultipartUploadsResult>")
+            .append(element("Bucket", bucket))
+            .append(element("IsTruncated", "false"));
+        uploads.values().stream()
+            .filter(upload -> upload.bucket.equals(bucket) && upload.key.startsWith(prefix))
+            .forEach(upload -> xml.append("<Upload>")
+                .append(element("Key", upload.key))
+                .append(element("UploadId", upload.uploadId))
+                .append(element("Initiated", upload.initiated.toString()))
+                .append("</Upload>"));
+        sendXml(exchange, xml.append("</ListMultipartUploadsResult>").toString());
+    }
+
+    /**
+     * Read the request body at the injected bandwidth, computing its digests on the way.
+     */
+    private Body readBody(HttpExchange exchange) throws IOException, InterruptedException {
+        var headers = exchange.getRequestHeaders();
+        var expectedCrc32c = headers.getFirst("x-amz-checksum-crc32c");
+        var expectedSha256 = headers.getFirst("x-amz-checksum-sha256");
+        var md5 = md5();
+        var crc32c = expectedCrc32c == null ? null : new CRC32C();
+        var sha256 = expectedSha256 == null ? null : sha256();
+        var content = keepContent ? new ByteArrayOutputStream() : null;
+        var buffer = new byte[64 * 1024];
+        var start = System.nanoTime();
+        long size = 0;
+        InputStream in = exchange.getRequestBody();
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            md5.update(buffer, 0, read);
+            if (crc32c != null) {
+                crc32c.update(buffer, 0, read);
+            }
+            if (sha256 != null) {
+                sha256.update(buffer, 0, read);
+            }
+            if (content != null) {
+                content.write(buffer, 0, read);
+            }
+            size += read;
+            throttle(start, size);
+        }
+        var checksums = new HashMap<String, String>();
+        String badDigest = null;
+        if (crc32c != null) {
+            var actual = base64(crc32c);
+            checksums.put("x-amz-checksum-crc32c", actual);
+            if (!actual.equals(expectedCrc32c)) {
+                badDigest = "CRC32C is " + actual + " instead of " + expectedCrc32c;
+            }
+        }
+        if (sha256 != null) {
+            var actual = Base64.getEncoder().encodeToString(sha256.digest());
+            checksums.put("x-amz-checksum-sha256", actual);
+            if (!actual.equals(expectedSha256)) {
+                badDigest = "SHA-256 is " + actual + " instead of " + expectedSha256;
+            }
+        }
+        return new Body(size, content == null ? null : content.toByteArray(), md5.digest(),
+            checksums, badDigest);
+    }
+
+    private void throttle(long start, long bytes) throws InterruptedException {
+        var bandwidth = this.bandwidth;
+        if (bandwidth <= 0) {
+            return;
+        }
+        var due = start + bytes * 1_000_000_000L / bandwidth;
+        var wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    private static void sendXml(HttpExchange exchange, String xml) throws IOException {
+        var bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml.replaceFirst(">",
+            " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"))
+            .getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code,
+                                  String message) throws IOException {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        var bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Error>"
+            + element("Code", code)
+            + element("Message", message)
+            + "</Error>").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> parseQuery(@Nullable String rawQuery) {
+        var query = new HashMap<String, String>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (var parameter : rawQuery.split("&")) {
+            var equals = parameter.indexOf('=');
+            var name = equals < 0 ? parameter : parameter.substring(0, equals);
+            var value = equals < 0 ? "" : parameter.substring(equals + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static String element(String name, String value) {
+        var escaped = value.replace("&", "&amp;")
+            .replace("<", "&lt;")
+            .replace(">", "&gt;")
+            .replace("\"", "&quot;");
+        return "<" + name + ">" + escaped + "</" + name + ">";
+    }
+
+    private static boolean isChecksumHeader(String lowerCaseName) {
+        return lowerCaseName.equals("x-amz-checksum-crc32c")
+            || lowerCaseName.equals("x-amz-checksum-sha256");
+    }
+
+    private static String checksumElement(String header) {
+        return header.endsWith("crc32c") ? "ChecksumCRC32C" : "ChecksumSHA256";
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String base64(Checksum checksum) {
+        return Base64.getEncoder().encodeToString(
+            ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array());
+    }
+
+    private static MessageDigest md5() {
+        return digest("MD5");
+    }
+
+    private static MessageDigest sha256() {
+        return digest("SHA-256");
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Body(long size, @Nullable byte[] content, byte[] md5,
+                        Map<String, String> checksums, @Nullable String badDigest) {
+
+        String md5Hex() {
+            return HexFormat.of().formatHex(md5);
+        }
+    }
+
+    private record StoredObject(long size, @Nullable byte[] content, String eTag,
+                                @Nullable String contentType, Instant lastModified,
+                                Map<String, String> checksums) {
+    }
+
+    private record StoredPart(int partNumber, long size, @Nullable byte[] content, byte[] md5,
+                              String eTag, Instant lastModified,
+                              Map<String, String> checksums) {
+    }
+
+    private static final class Upload {
+        final String bucket;
+        final String key;
+        final String uploadId;
+        final String contentType;
+        final Instant initiated;
+        final NavigableMap<Integer, StoredPart> parts = new ConcurrentSkipListMap<>();
+
+        Upload(String bucket, String key, String uploadId, String contentType,
+               Instant initiated) {
+            this.bucket = bucket;
+            this.key = key;
+            this.uploadId = uploadId;
+            this.contentType = contentType;
+            this.initiated = initiated;
+        }
+    }
+}
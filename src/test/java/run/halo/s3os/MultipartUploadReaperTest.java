@@ -0,0 +1,105 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import run.halo.app.extension.ReactiveExtensionClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.Part;
+
+class MultipartUploadReaperTest {
+
+    ReactiveExtensionClient client;
+
+    S3OsAttachmentHandler handler;
+
+    MultipartUploadReaper reaper;
+
+    @BeforeEach
+    void setUp() {
+        client = mock(ReactiveExtensionClient.class);
+        handler = mock(S3OsAttachmentHandler.class);
+        reaper = new MultipartUploadReaper(client, mock(S3ClientPool.class), handler);
+        when(client.list(any(), any(), any())).thenReturn(Flux.empty());
+    }
+
+    @Test
+    void abortUploadsOlderThanMaxAge() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setLocation("attachments/${year}");
+        var now = Instant.now();
+        var operations = mock(S3Operations.class, CALLS_REAL_METHODS);
+        when(operations.listMultipartUploads(argThat(request ->
+            "attachments/".equals(request.prefix()))))
+            .thenReturn(Mono.just(ListMultipartUploadsResponse.builder()
+                .uploads(upload("old", now.minus(Duration.ofDays(2))),
+                    upload("recent", now.minus(Duration.ofMinutes(5))))
+                .isTruncated(false)
+                .build()));
+        when(operations.listParts(any())).thenReturn(Mono.just(ListPartsResponse.builder()
+            .parts(Part.builder().partNumber(1).size(5L).build(),
+                Part.builder().partNumber(2).size(3L).build())
+            .isTruncated(false)
+            .build()));
+        when(operations.abortMultipartUpload(any()))
+            .thenReturn(Mono.just(AbortMultipartUploadResponse.builder().build()));
+
+        StepVerifier.create(reaper.reap(properties, operations, now.minus(Duration.ofDays(1))))
+            .expectNext(new MultipartUploadReaper.ReapResult(1, 8))
+            .verifyComplete();
+
+        verify(operations, times(1)).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "old".equals(request.uploadId())));
+    }
+
+    @Test
+    void skipLocationsWithoutStaticPrefix() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setLocation("${year}/${month}");
+        var operations = mock(S3Operations.class);
+
+        StepVerifier.create(reaper.reap(properties, operations, Instant.now()))
+            .expectNext(new MultipartUploadReaper.ReapResult(0, 0))
+            .verifyComplete();
+
+        verify(operations, never()).listMultipartUploads(any());
+    }
+
+    @Test
+    void locationPrefixStopsAtFirstPlaceholder() {
+        assertNull(MultipartUploadReaper.locationPrefix(""));
+        assertNull(MultipartUploadReaper.locationPrefix("${year}/${month}"));
+        assertEquals("halo/", MultipartUploadReaper.locationPrefix("halo"));
+        assertEquals("halo/", MultipartUploadReaper.locationPrefix("halo/${year}"));
+        assertEquals("halo/up", MultipartUploadReaper.locationPrefix("halo/up${year}"));
+    }
+
+    static MultipartUpload upload(String uploadId, Instant initiated) {
+        return MultipartUpload.builder()
+            .key("attachments/2025/" + uploadId + ".mp4")
+            .uploadId(uploadId)
+            .initiated(initiated)
+            .build();
+    }
+}
@@ -0,0 +1,109 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+class PartAssemblerTest {
+
+    final DefaultDataBufferFactory factory = DefaultDataBufferFactory.sharedInstance;
+
+    @Test
+    void assembleSamePartsAsByteByByteCopy() {
+        var random = new Random(42);
+        var content = new byte[100_000];
+        random.nextBytes(content);
+
+        for (var partSize : new int[] {1, 7, 4096, 65_536, 100_000, 200_000}) {
+            var chunks = randomChunks(content, random);
+            var expected = byteByByteParts(chunks, partSize);
+            var actual = PartAssembler.assemble(Flux.fromIterable(wrap(chunks)), partSize)
+                .map(PartAssemblerTest::toBytes)
+                .collectList()
+                .block();
+
+            assertEquals(expected.size(), actual.size(), "part count of size " + partSize);
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals(expected.get(i), actual.get(i));
+            }
+        }
+    }
+
+    @Test
+    void releaseIncomingBuffers() {
+        var buffers = List.<DataBuffer>of(
+            factory.allocateBuffer(4).write("halo".getBytes()),
+            factory.allocateBuffer(3).write("run".getBytes())
+        );
+        var assembler = new PartAssembler(5);
+
+        var parts = assembler.append(buffers.get(0)).collectList().block();
+        assertTrue(parts.isEmpty());
+        parts = assembler.append(buffers.get(1)).collectList().block();
+        assertEquals("halor", new String(toBytes(parts.get(0))));
+        assertEquals("un", new String(toBytes(assembler.flush())));
+        buffers.forEach(buffer -> assertEquals(0, buffer.readableByteCount()));
+    }
+
+    @Test
+    void assembleNothingFromEmptyContent() {
+        StepVerifier.create(PartAssembler.assemble(Flux.empty(), 5))
+            .verifyComplete();
+    }
+
+    List<DataBuffer> wrap(List<byte[]> chunks) {
+        return chunks.stream().<DataBuffer>map(factory::wrap).toList();
+    }
+
+    static List<byte[]> randomChunks(byte[] content, Random random) {
+        var chunks = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset < content.length) {
+            var length = Math.min(content.length - offset, 1 + random.nextInt(8192));
+            var chunk = new byte[length];
+            System.arraycopy(content, offset, chunk, 0, length);
+            chunks.add(chunk);
+            offset += length;
+        }
+        return chunks;
+    }
+
+    /**
+     * The previous implementation of reshape, kept as reference: copies byte by byte.
+     */
+    static List<byte[]> byteByByteParts(List<byte[]> chunks, int partSize) {
+        var parts = new ArrayList<byte[]>();
+        var byteBuffer = ByteBuffer.allocate(partSize);
+        for (var chunk : chunks) {
+            for (var b : chunk) {
+                byteBuffer.put(b);
+                if (!byteBuffer.hasRemaining()) {
+                    parts.add(byteBuffer.array().clone());
+                    byteBuffer.clear();
+                }
+            }
+        }
+        if (byteBuffer.position() > 0) {
+            var last = new byte[byteBuffer.position()];
+            byteBuffer.flip().get(last);
+            parts.add(last);
+        }
+        return parts;
+    }
+
+    static byte[] toBytes(ByteBuffer buffer) {
+        var bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,191 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+
+class PartBufferPoolTest {
+
+    static final int MB = 1024 * 1024;
+
+    PartBufferPool pool;
+
+    @BeforeEach
+    void setUp() {
+        var settingFetcher = mock(ReactiveSettingFetcher.class);
+        var settings = new PartBufferPool.UploadSettings();
+        settings.setMemoryBudget(16);
+        when(settingFetcher.fetch(PartBufferPool.SETTING_GROUP,
+            PartBufferPool.UploadSettings.class))
+            .thenReturn(Mono.just(settings));
+        pool = new PartBufferPool(settingFetcher);
+    }
+
+    @Test
+    void waitUntilBudgetIsReleased() {
+        var first = pool.reserve(4 * MB, 3).block();
+        assertEquals(4 * MB, pool.available());
+
+        var second = pool.reserve(4 * MB, 2).toFuture();
+        assertFalse(second.isDone());
+
+        first.close();
+        assertTrue(second.isDone());
+        second.join().close();
+        assertEquals(16 * MB, pool.available());
+    }
+
+    @Test
+    void grantFewerPartsThanBudgetCanHold() {
+        try (var reservation = pool.reserve(5 * MB, 8).block()) {
+            assertEquals(3, reservation.parts());
+        }
+        try (var reservation = pool.reserve(32 * MB, 8).block()) {
+            assertEquals(PartBufferPool.MIN_PARTS, reservation.parts());
+        }
+    }
+
+    @Test
+    void reserveOnePartAndExpandWhenMoreAreNeeded() {
+        try (var reservation = pool.reserve(MB).block()) {
+            assertEquals(1, reservation.parts());
+            assertEquals(15 * MB, pool.available());
+
+            reservation.expand(4).block();
+            assertEquals(4, reservation.parts());
+            assertEquals(12 * MB, pool.available());
+        }
+        assertEquals(16 * MB, pool.available());
+    }
+
+    @Test
+    void leaveRoomForExpandingReservations() {
+        var first = pool.reserve(4 * MB, 3).block();
+
+        var second = pool.reserve(4 * MB).toFuture();
+        assertFalse(second.isDone());
+
+        first.close();
+        assertTrue(second.isDone());
+        second.join().close();
+    }
+
+    @Test
+    void reuseReleasedBuffers() {
+        try (var reservation = pool.reserve(MB, 2).block()) {
+            var buffer = reservation.acquire(MB).block();
+            assertTrue(buffer.isDirect());
+            buffer.put((byte) 1).flip();
+            reservation.release(buffer);
+
+            var reused = reservation.acquire(MB).block();
+            assertSame(buffer, reused);
+            assertEquals(0, reused.position());
+            assertEquals(MB, reused.remaining());
+        }
+    }
+
+    @Test
+    void reuseLargerBuffersForSmallerParts() {
+        try (var reservation = pool.reserve(2 * MB, 2).block()) {
+            var buffer = reservation.acquire(2 * MB).block();
+            reservation.release(buffer);
+
+            var reused = reservation.acquire(MB + 1).block();
+            assertSame(buffer, reused);
+            assertEquals(MB + 1, reused.remaining());
+            reservation.release(reused);
+
+            assertNotSame(buffer, reservation.acquire(MB - 1).block());
+        }
+    }
+
+    @Test
+    void waitForBufferWhenHoldingAllPartsReserved() {
+        try (var reservation = pool.reserve(MB, 2).block()) {
+            var first = reservation.acquire(MB).block();
+            assertTrue(reservation.acquire(MB).block().isDirect());
+
+            var third = reservation.acquire(MB).toFuture();
+            assertFalse(third.isDone());
+
+            reservation.release(first);
+            assertSame(first, third.join());
+        }
+    }
+
+    @Test
+    void waitForBufferWhenMemoryIsTakenByOtherUploads() {
+        try (var reservation = pool.reserve(8 * MB, 2).block()) {
+            var first = reservation.acquire(8 * MB).block();
+            var second = reservation.acquire(8 * MB).block();
+            reservation.release(first);
+            reservation.release(second);
+        }
+        // reuses the larger idle buffers and takes the whole budget
+        var other = pool.reserve(5 * MB, 2).block();
+        var buffer = other.acquire(5 * MB).block();
+        other.acquire(5 * MB).block();
+        try (var reservation = pool.reserve(MB).block()) {
+            var waiting = reservation.acquire(MB).toFuture();
+            assertFalse(waiting.isDone());
+
+            other.release(buffer);
+            assertTrue(waiting.join().isDirect());
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    void countIdleBuffersAgainstBudget() {
+        try (var reservation = pool.reserve(4 * MB, 2).block()) {
+            var first = reservation.acquire(4 * MB).block();
+            var second = reservation.acquire(4 * MB).block();
+            reservation.release(first);
+            reservation.release(second);
+        }
+        assertEquals(8 * MB, pool.idleBytes());
+
+        // too small to reuse the idle buffers
+        try (var reservation = pool.reserve(MB, 10).block()) {
+            for (int i = 0; i < 10; i++) {
+                assertTrue(reservation.acquire(MB).block().isDirect());
+            }
+            // one idle buffer made room for the new ones
+            assertEquals(4 * MB, pool.idleBytes());
+        }
+    }
+
+    @Test
+    void growReservationWithinBudget() {
+        try (var other = pool.reserve(MB, 8).block();
+             var reservation = pool.reserve(2 * MB, 4).block()) {
+            assertEquals(0, pool.available());
+
+            assertTrue(reservation.acquire(4 * MB).block().isDirect());
+            assertEquals(2, reservation.parts());
+            assertEquals(0, pool.available());
+        }
+    }
+
+    @Test
+    void growReservationForLargerParts() {
+        try (var reservation = pool.reserve(MB, 2).block()) {
+            assertEquals(14 * MB, pool.available());
+            var buffer = reservation.acquire(2 * MB).block();
+            assertEquals(2 * MB, buffer.capacity());
+            assertEquals(12 * MB, pool.available());
+        }
+        assertEquals(16 * MB, pool.available());
+    }
+}
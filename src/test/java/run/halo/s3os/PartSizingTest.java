@@ -0,0 +1,55 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+class PartSizingTest {
+
+    static final int MB = 1024 * 1024;
+
+    @Test
+    void keepTargetPartSizeForMediumFiles() {
+        var sizing = PartSizing.of(1024L * MB, 5 * MB);
+        assertFalse(sizing.growing());
+        assertEquals(5 * MB, sizing.partSize(1));
+        assertEquals(5 * MB, sizing.partSize(205));
+    }
+
+    @Test
+    void growPartSizeToStayWithinPartLimit() {
+        var contentLength = 100L * 1024 * MB;
+        var sizing = PartSizing.of(contentLength, 5 * MB);
+        assertEquals(11 * MB, sizing.partSize(1));
+        assertTrue(Math.ceilDiv(contentLength, sizing.partSize(1)) <= PartSizing.MAX_PARTS);
+    }
+
+    @Test
+    void doublePartSizeWhenContentLengthIsUnknown() {
+        var sizing = PartSizing.of(-1, 5 * MB);
+        assertTrue(sizing.growing());
+        assertEquals(5 * MB, sizing.partSize(1000));
+        assertEquals(10 * MB, sizing.partSize(1001));
+        assertEquals(20 * MB, sizing.partSize(2001));
+        assertEquals(PartSizing.MAX_PART_SIZE, sizing.partSize(PartSizing.MAX_PARTS));
+    }
+
+    @Test
+    void assembleGrowingParts() {
+        var content = new byte[10];
+        var parts = PartAssembler.assemble(
+                Flux.just((DataBuffer) DefaultDataBufferFactory.sharedInstance.wrap(content)),
+                partNumber -> partNumber, ByteBuffer::allocate, null)
+            .map(ByteBuffer::remaining)
+            .collectList()
+            .block();
+        assertEquals(List.of(1, 2, 3, 4), parts);
+    }
+}
@@ -0,0 +1,79 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PartStagerTest {
+
+    @TempDir
+    Path directory;
+
+    PartStager stager;
+
+    S3OsProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        stager = new PartStager();
+        properties = new S3OsProperties();
+        properties.setSpillDirectory(directory.toString());
+        properties.setSpillMaxSize("1");
+    }
+
+    @Test
+    void stagePartAndDeleteIt() throws IOException {
+        var content = "halo".getBytes();
+        var buffer = ByteBuffer.wrap(content);
+
+        var stagedPart = stager.stage(properties, buffer).block();
+
+        assertNotNull(stagedPart);
+        assertArrayEquals(content, Files.readAllBytes(stagedPart.file()));
+        assertEquals(content.length, buffer.remaining());
+        assertEquals(content.length, stager.usedSpace(directory));
+
+        stagedPart.delete();
+        assertFalse(Files.exists(stagedPart.file()));
+        assertEquals(0, stager.usedSpace(directory));
+    }
+
+    @Test
+    void keepPartInMemoryWhenDirectoryIsFull() {
+        var first = stager.stage(properties, ByteBuffer.allocate(768 * 1024)).block();
+        assertNotNull(first);
+
+        assertNull(stager.stage(properties, ByteBuffer.allocate(512 * 1024)).block());
+
+        first.delete();
+        assertNotNull(stager.stage(properties, ByteBuffer.allocate(512 * 1024)).block());
+    }
+
+    @Test
+    void deleteExpiredStagedParts() throws IOException {
+        var expired = Files.createFile(directory.resolve("s3os-expired.part"));
+        Files.setLastModifiedTime(expired,
+            FileTime.from(Instant.now().minus(Duration.ofHours(25))));
+        var unrelated = Files.createFile(directory.resolve("unrelated.part"));
+        Files.setLastModifiedTime(unrelated,
+            FileTime.from(Instant.now().minus(Duration.ofHours(25))));
+
+        stager.stage(properties, ByteBuffer.wrap("halo".getBytes())).block().delete();
+
+        assertFalse(Files.exists(expired));
+        assertNotNull(Files.getLastModifiedTime(unrelated));
+    }
+}
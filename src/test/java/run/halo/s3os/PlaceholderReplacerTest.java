@@ -2,6 +2,7 @@ package run.halo.s3os;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.time.LocalDateTime;
 import org.junit.jupiter.api.Test;
 
 class PlaceholderReplacerTest {
@@ -77,4 +78,22 @@ class PlaceholderReplacerTest {
         assertEquals("file_random-alphabetic}_test", result);
     }
 
-}
\ No newline at end of file
+    @Test
+    void testReplacePlaceholdersCompiledTemplate() {
+        var template = PlaceholderReplacer.compile("${year}/${month}/${origin-filename}_${x}");
+        var time = LocalDateTime.of(2024, 3, 7, 8, 9, 10, 11_000_000);
+        assertEquals("2024/03/test_${x}", template.apply("test", time));
+        // the filename is not a template
+        assertEquals("2024/03/${day}_${x}", template.apply("${day}", time));
+        assertEquals("2024/03/${origin-filename}_${x}", template.apply(null, time));
+
+        template = PlaceholderReplacer.compile("${hour}${minute}${second}${millisecond}${weekday}");
+        assertEquals("080910011" + "4", template.apply("test", time));
+    }
+
+    @Test
+    void testReplacePlaceholdersNested() {
+        String result = PlaceholderReplacer.replacePlaceholders("a-${random-num:${x}}", "test");
+        assertTrue(result.matches("a-[0-9]{8}"), result);
+    }
+}
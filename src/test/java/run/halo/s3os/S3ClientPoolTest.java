@@ -0,0 +1,92 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
+import software.amazon.awssdk.services.s3.S3Client;
+
+class S3ClientPoolTest {
+
+    S3ClientPool pool;
+
+    S3OsProperties properties;
+
+    @BeforeEach
+    void setUp() {
+        pool = new S3ClientPool(new S3Metrics(new SimpleMeterRegistry()));
+        properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setEndpoint("s3.example.com");
+        properties.setAccessKey("access-key");
+        properties.setAccessSecret("access-secret");
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.destroy();
+    }
+
+    @Test
+    void reuseClientOfSameConfigMapVersion() {
+        var configMap = configMap("policy-config", 1L);
+        S3Client client;
+        try (var first = pool.acquire(configMap, properties);
+             var second = pool.acquire(configMap, properties)) {
+            client = first.client();
+            assertSame(client, second.client());
+        }
+        // released clients stay warm in the pool
+        try (var third = pool.acquire(configMap, properties)) {
+            assertSame(client, third.client());
+            assertEquals(1, pool.size());
+        }
+    }
+
+    @Test
+    void rebuildClientWhenConfigMapVersionChanged() {
+        try (var oldLease = pool.acquire(configMap("policy-config", 1L), properties);
+             var newLease = pool.acquire(configMap("policy-config", 2L), properties)) {
+            assertNotSame(oldLease.client(), newLease.client());
+            assertEquals(1, pool.size());
+        }
+    }
+
+    @Test
+    void notPoolDetachedClient() {
+        try (var first = pool.acquireDetached(properties);
+             var second = pool.acquireDetached(properties)) {
+            assertNotSame(first.client(), second.client());
+        }
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    void chooseOperationsByClientEngine() {
+        try (var lease = pool.acquireDetached(properties)) {
+            var operations = assertInstanceOf(MeteredS3Operations.class, lease.operations());
+            assertInstanceOf(BlockingS3Operations.class, operations.delegate);
+        }
+        properties.setClientEngine(S3OsProperties.ClientEngine.async);
+        try (var lease = pool.acquireDetached(properties)) {
+            var operations = assertInstanceOf(MeteredS3Operations.class, lease.operations());
+            assertInstanceOf(AsyncS3Operations.class, operations.delegate);
+        }
+    }
+
+    static ConfigMap configMap(String name, Long version) {
+        var metadata = new Metadata();
+        metadata.setName(name);
+        metadata.setVersion(version);
+        var configMap = new ConfigMap();
+        configMap.setMetadata(metadata);
+        return configMap;
+    }
+}
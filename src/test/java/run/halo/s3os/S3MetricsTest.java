@@ -0,0 +1,78 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+class S3MetricsTest {
+
+    SimpleMeterRegistry registry;
+
+    S3Metrics metrics;
+
+    @BeforeEach
+    void setUp() {
+        registry = new SimpleMeterRegistry();
+        metrics = new S3Metrics(registry);
+    }
+
+    @Test
+    void timeRequestsByOperationAndOutcome() {
+        var delegate = mock(S3Operations.class);
+        when(delegate.headObject(any()))
+            .thenReturn(Mono.just(HeadObjectResponse.builder().build()))
+            .thenReturn(Mono.error(NoSuchKeyException.builder().build()));
+        var operations = metrics.instrument(delegate, "policy-config");
+        var request = HeadObjectRequest.builder().bucket("halo").key("halo.png").build();
+
+        StepVerifier.create(operations.headObject(request)).expectNextCount(1).verifyComplete();
+        StepVerifier.create(operations.headObject(request))
+            .verifyError(NoSuchKeyException.class);
+
+        assertEquals(1, registry.get(S3Metrics.REQUESTS)
+            .tags("configMap", "policy-config", "operation", "headObject", "outcome", "success")
+            .timer()
+            .count());
+        assertEquals(1, registry.get(S3Metrics.REQUESTS)
+            .tags("configMap", "policy-config", "operation", "headObject", "outcome", "error")
+            .timer()
+            .count());
+    }
+
+    @Test
+    void tagUploadsWithoutPolicy() {
+        StepVerifier.create(metrics.timeUpload(null, Mono.just("uploaded")))
+            .expectNext("uploaded")
+            .verifyComplete();
+        metrics.uploaded(null, 1024, 1);
+
+        assertEquals(1, registry.get(S3Metrics.UPLOADS)
+            .tags("policy", S3Metrics.NONE, "outcome", "success")
+            .timer()
+            .count());
+        assertEquals(1024, registry.get(S3Metrics.UPLOADS + ".size").summary().totalAmount());
+    }
+
+    @Test
+    void removeMetersOnDestroy() {
+        metrics.retried("policy", "putObject");
+        metrics.thumbnailCache(true);
+        registry.counter("other").increment();
+
+        metrics.destroy();
+
+        assertEquals(1, registry.getMeters().size());
+        assertTrue(registry.find(S3Metrics.RETRIES).meters().isEmpty());
+    }
+}
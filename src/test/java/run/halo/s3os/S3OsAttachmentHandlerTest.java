@@ -3,26 +3,71 @@ package run.halo.s3os;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.data.domain.Sort;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
+import run.halo.app.core.extension.attachment.Attachment;
 import run.halo.app.core.extension.attachment.Policy;
+import run.halo.app.core.extension.attachment.endpoint.AttachmentHandler;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.ListOptions;
+import run.halo.app.extension.Metadata;
+import run.halo.app.extension.ReactiveExtensionClient;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
 class S3OsAttachmentHandlerTest {
 
     S3OsAttachmentHandler handler;
 
+    ReactiveExtensionClient client;
+
+    S3ClientPool clientPool;
+
     @BeforeEach
     void setUp() {
-        handler = new S3OsAttachmentHandler();
+        client = mock(ReactiveExtensionClient.class);
+        clientPool = mock(S3ClientPool.class);
+        handler = new S3OsAttachmentHandler(clientPool,
+            mock(PartBufferPool.class), mock(PartStager.class), client,
+            new S3Metrics(new SimpleMeterRegistry()));
     }
 
     @Test
@@ -43,7 +88,6 @@ class S3OsAttachmentHandlerTest {
 
     @Test
     void reshapeDataBufferWithSmallerBufferSize() {
-        var handler = new S3OsAttachmentHandler();
         var factory = DefaultDataBufferFactory.sharedInstance;
         var content = Flux.<DataBuffer>fromIterable(List.of(factory.wrap("halo".getBytes())));
 
@@ -61,7 +105,6 @@ class S3OsAttachmentHandlerTest {
 
     @Test
     void reshapeDataBufferWithBiggerBufferSize() {
-        var handler = new S3OsAttachmentHandler();
         var factory = DefaultDataBufferFactory.sharedInstance;
         var content = Flux.<DataBuffer>fromIterable(List.of(factory.wrap("halo".getBytes())));
 
@@ -75,7 +118,6 @@ class S3OsAttachmentHandlerTest {
 
     @Test
     void reshapeDataBuffersWithBiggerBufferSize() {
-        var handler = new S3OsAttachmentHandler();
         var factory = DefaultDataBufferFactory.sharedInstance;
         var content = Flux.<DataBuffer>fromIterable(List.of(
             factory.wrap("ha".getBytes()),
@@ -93,4 +135,308 @@ class S3OsAttachmentHandlerTest {
             })
             .verifyComplete();
     }
+
+    @Test
+    void reuseSharedUrlWhileMostOfLifetimeRemains() {
+        var uri = URI.create("https://halo.s3.example.com/halo.png?X-Amz-Signature=signature");
+        var ttl = Duration.ofMinutes(10);
+
+        var fresh = new S3OsAttachmentHandler.SharedUrl(uri, Instant.now().plus(Duration.ofMinutes(9)));
+        assertTrue(fresh.isFresh(ttl));
+
+        var stale = new S3OsAttachmentHandler.SharedUrl(uri, Instant.now().plus(Duration.ofMinutes(4)));
+        assertFalse(stale.isFresh(ttl));
+    }
+
+    @Test
+    void keepObjectUsedByOtherAttachmentsOfPolicy() {
+        var deleted = attachment("deleted", "halo.png");
+        deleted.getMetadata().getAnnotations()
+            .put(S3OsAttachmentHandler.CONTENT_HASH_ANNO_KEY, "hash");
+        when(client.listAll(eq(Attachment.class), any(ListOptions.class), any(Sort.class)))
+            .thenReturn(Flux.just(deleted, attachment("linked", "halo.png")));
+        var policy = new Policy();
+        policy.setSpec(new Policy.PolicySpec());
+        policy.getSpec().setTemplateName("s3os");
+        var configMap = new ConfigMap();
+        configMap.setMetadata(new Metadata());
+        configMap.setData(Map.of("default", "{\"bucket\":\"halo\"}"));
+
+        StepVerifier.create(handler.delete(
+                new AttachmentHandler.DeleteContext(deleted, policy, configMap)))
+            .expectNext(deleted)
+            .verifyComplete();
+
+        verify(client).listAll(eq(Attachment.class),
+            argThat((ListOptions options) -> options.getFieldSelector() != null),
+            any(Sort.class));
+        verify(clientPool, never()).acquire(any(), any());
+    }
+
+    static Attachment attachment(String name, String objectKey) {
+        var metadata = new Metadata();
+        metadata.setName(name);
+        metadata.setAnnotations(new HashMap<>(Map.of(S3OsAttachmentHandler.OBJECT_KEY, objectKey)));
+        var attachment = new Attachment();
+        attachment.setMetadata(metadata);
+        attachment.setSpec(new Attachment.AttachmentSpec());
+        attachment.getSpec().setPolicyName("s3");
+        return attachment;
+    }
+
+    @Test
+    void keepUploadedPartsWithoutGapsWhenResuming() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.mp4", false);
+        uploadState.uploadId = "upload-id";
+        uploadState.partSizing = new PartSizing(5, false);
+        var operations = mock(S3Operations.class, CALLS_REAL_METHODS);
+        when(operations.listParts(any())).thenReturn(Mono.just((ListPartsResponse)
+            ListPartsResponse.builder()
+                .parts(part(4, 5), part(1, 5), part(2, 5), part(5, 3))
+                .isTruncated(false)
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+
+        StepVerifier.create(handler.reconcileUploadedParts(uploadState, operations))
+            .expectNext(uploadState)
+            .verifyComplete();
+
+        assertEquals(2, uploadState.partCounter);
+        assertEquals(10, uploadState.size);
+        assertEquals(List.of(1, 2), List.copyOf(uploadState.completedParts.keySet()));
+        assertEquals("etag-2", uploadState.completedParts.get(2).eTag());
+    }
+
+    @Test
+    void leaveFullObjectChecksumOutWhenResumedUploadDoesNotKnowIt() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.mp4", false);
+        uploadState.uploadId = "upload-id";
+        uploadState.useChecksums(S3OsProperties.ChecksumAlgorithm.crc32c, false);
+        var operations = mock(S3Operations.class);
+        when(operations.completeMultipartUpload(any())).thenReturn(Mono.just(
+            (CompleteMultipartUploadResponse) CompleteMultipartUploadResponse.builder()
+                .checksumCRC32C("crc32c")
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+
+        StepVerifier.create(handler.completeMultipartUpload(uploadState, operations))
+            .expectNext(uploadState)
+            .verifyComplete();
+
+        verify(operations).completeMultipartUpload(
+            argThat((CompleteMultipartUploadRequest request) -> request.checksumType() == null
+                && request.checksumCRC32C() == null));
+        assertEquals("crc32c", uploadState.checksum);
+    }
+
+    static Part part(int partNumber, long size) {
+        return Part.builder().partNumber(partNumber).size(size).eTag("etag-" + partNumber).build();
+    }
+
+    @Test
+    void openNoSessionWithoutOwner() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setResumableUpload(true);
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.mp4", false);
+        uploadState.policyName = "s3";
+        uploadState.uploadId = "upload-id";
+
+        // no security context, nobody could resume the upload
+        StepVerifier.create(handler.openSession(uploadState))
+            .verifyComplete();
+
+        verify(client, never()).create(any());
+        assertNull(uploadState.session);
+    }
+
+    @Test
+    void abortMultipartUploadWhenUploadFails() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.mp4", false);
+        var operations = mock(S3Operations.class);
+        when(operations.createMultipartUpload(any())).thenReturn(Mono.just(
+            (CreateMultipartUploadResponse) CreateMultipartUploadResponse.builder()
+                .uploadId("upload-id")
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+        when(operations.abortMultipartUpload(any()))
+            .thenReturn(Mono.just(AbortMultipartUploadResponse.builder().build()));
+
+        StepVerifier.create(handler.multipartUpload(uploadState,
+                Flux.error(new IllegalStateException("Client has gone away.")), operations))
+            .verifyError(IllegalStateException.class);
+
+        verify(operations).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "upload-id".equals(request.uploadId())
+                && "halo.mp4".equals(request.key())));
+    }
+
+    @Test
+    void abortCancelledMultipartUploadWithLeaseOfItsOwn() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.mp4", false);
+        var operations = mock(S3Operations.class);
+        when(operations.createMultipartUpload(any())).thenReturn(Mono.just(
+            (CreateMultipartUploadResponse) CreateMultipartUploadResponse.builder()
+                .uploadId("upload-id")
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+        // the lease of the upload is closed once it is cancelled
+        var leased = mock(S3Operations.class);
+        when(leased.abortMultipartUpload(any()))
+            .thenReturn(Mono.just(AbortMultipartUploadResponse.builder().build()));
+        var lease = mock(S3ClientPool.Lease.class);
+        when(lease.operations()).thenReturn(leased);
+        when(clientPool.acquireDetached(properties)).thenReturn(lease);
+
+        StepVerifier.create(handler.multipartUpload(uploadState, Flux.never(), operations))
+            .expectSubscription()
+            .thenCancel()
+            .verify();
+
+        verify(operations, never()).abortMultipartUpload(any());
+        verify(leased).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "upload-id".equals(request.uploadId())
+                && "halo.mp4".equals(request.key())));
+        verify(lease).close();
+    }
+
+    @Test
+    void abortMultipartUploadWhenContentIsStoredAlready() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.png", false);
+        uploadState.policyName = "s3";
+        uploadState.hashContent();
+        var content = "halo".getBytes(UTF_8);
+        uploadState.contentDigest.update(ByteBuffer.wrap(content));
+
+        var duplicate = new ContentObject();
+        duplicate.setMetadata(new Metadata());
+        duplicate.setSpec(new ContentObject.Spec());
+        duplicate.getSpec().setBucket("halo");
+        duplicate.getSpec().setObjectKey("existing.png");
+        duplicate.getSpec().setSize((long) content.length);
+        when(client.fetch(ContentObject.class,
+            ContentObject.nameOf(uploadState.contentHash(), "s3")))
+            .thenReturn(Mono.just(duplicate));
+
+        var operations = mock(S3Operations.class);
+        var ok = SdkHttpResponse.builder().statusCode(200).build();
+        when(operations.createMultipartUpload(any())).thenReturn(Mono.just(
+            (CreateMultipartUploadResponse) CreateMultipartUploadResponse.builder()
+                .uploadId("upload-id")
+                .sdkHttpResponse(ok)
+                .build()));
+        when(operations.uploadPart(any(), any(ByteBuffer.class))).thenReturn(Mono.just(
+            (UploadPartResponse) UploadPartResponse.builder().eTag("etag-1").sdkHttpResponse(ok)
+                .build()));
+        when(operations.headObject(any())).thenReturn(Mono.just(
+            (HeadObjectResponse) HeadObjectResponse.builder()
+                .contentLength((long) content.length)
+                .eTag("existing-etag")
+                .sdkHttpResponse(ok)
+                .build()));
+        when(operations.abortMultipartUpload(any()))
+            .thenReturn(Mono.just(AbortMultipartUploadResponse.builder().build()));
+
+        StepVerifier.create(handler.multipartUpload(uploadState,
+                Flux.just(ByteBuffer.wrap(content)), operations))
+            .expectNext(uploadState)
+            .verifyComplete();
+
+        verify(operations).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "upload-id".equals(request.uploadId())
+                && "halo.png".equals(request.key())));
+        assertTrue(uploadState.deduplicated);
+        assertEquals("existing.png", uploadState.objectKey);
+        assertEquals("existing-etag", uploadState.eTag);
+        assertEquals("a4e63bcacf6c172ad84f9f4523c8f1acaf33676fa76d3258c67b7e7bbf16d777",
+            uploadState.contentHash());
+    }
+
+    @Test
+    void renameWhenConditionalPutFindsObjectKeyTaken() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setConditionalWrites(true);
+        var uploadState = new S3OsAttachmentHandler.UploadState(properties, "halo.png", false);
+        var operations = mock(S3Operations.class);
+        when(operations.putObject(any(), any())).thenReturn(
+            Mono.error(S3Exception.builder().statusCode(412).build()),
+            Mono.just((PutObjectResponse) PutObjectResponse.builder()
+                .eTag("etag")
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+
+        StepVerifier.create(handler.putObject(uploadState, ByteBuffer.wrap("halo".getBytes()),
+                operations))
+            .expectNext(uploadState)
+            .verifyComplete();
+
+        assertNotEquals("halo.png", uploadState.objectKey);
+        assertTrue(uploadState.objectKey.startsWith("halo-"));
+        assertEquals(4, uploadState.size);
+        verify(operations).putObject(
+            argThat((PutObjectRequest request) -> "halo.png".equals(request.key())
+                && "*".equals(request.ifNoneMatch())), any());
+    }
+
+    @Test
+    void renameWithoutTakingLockOfAnotherUpload() {
+        var properties = new S3OsProperties();
+        properties.setBucket("halo");
+        properties.setConditionalWrites(true);
+        var first = new S3OsAttachmentHandler.UploadState(properties, "halo.png", false);
+        var second = new S3OsAttachmentHandler.UploadState(properties, "halo.png", false);
+        var operations = mock(S3Operations.class);
+
+        StepVerifier.create(handler.checkFileExistsAndRename(first, operations))
+            .expectNext(first)
+            .verifyComplete();
+        StepVerifier.create(handler.checkFileExistsAndRename(second, operations))
+            .expectNext(second)
+            .verifyComplete();
+
+        assertNotEquals("halo.png", second.objectKey);
+        assertTrue(second.needRemoveMapKey);
+        assertTrue(handler.isUploading("halo", "halo.png"));
+        assertTrue(handler.isUploading("halo", second.objectKey));
+    }
+
+    @Test
+    void abortSpeculativeUploadOfRenamedObject() {
+        var operations = mock(S3Operations.class);
+        when(operations.createMultipartUpload(any())).thenReturn(Mono.just(
+            (CreateMultipartUploadResponse) CreateMultipartUploadResponse.builder()
+                .uploadId("upload-id")
+                .sdkHttpResponse(SdkHttpResponse.builder().statusCode(200).build())
+                .build()));
+        when(operations.abortMultipartUpload(any()))
+            .thenReturn(Mono.just(AbortMultipartUploadResponse.builder().build()));
+
+        var renamed = S3OsAttachmentHandler.SpeculativeUpload.start("halo.mp4",
+            CreateMultipartUploadRequest.builder().bucket("halo").key("halo.mp4").build(),
+            operations);
+        assertFalse(renamed.claim("halo-abcd.mp4"));
+        renamed.abortUnlessClaimed("halo", operations).block();
+        verify(operations).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "upload-id".equals(request.uploadId())
+                && "halo.mp4".equals(request.key())));
+
+        var claimed = S3OsAttachmentHandler.SpeculativeUpload.start("halo.png",
+            CreateMultipartUploadRequest.builder().bucket("halo").key("halo.png").build(),
+            operations);
+        assertTrue(claimed.claim("halo.png"));
+        claimed.abortUnlessClaimed("halo", operations).block();
+        verify(operations, never()).abortMultipartUpload(
+            argThat((AbortMultipartUploadRequest request) -> "halo.png".equals(request.key())));
+    }
 }
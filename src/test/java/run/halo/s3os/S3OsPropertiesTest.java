@@ -0,0 +1,56 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
+
+class S3OsPropertiesTest {
+
+    @Test
+    void reusePropertiesOfSameConfigMapVersion() {
+        var first = S3OsProperties.convertFrom(configMap("cache-test", 1L, "halo"));
+        var same = S3OsProperties.convertFrom(configMap("cache-test", 1L, "halo"));
+        assertSame(first, same);
+        assertEquals("halo", first.getBucket());
+
+        var changed = S3OsProperties.convertFrom(configMap("cache-test", 2L, "halo-changed"));
+        assertNotSame(first, changed);
+        assertEquals("halo-changed", changed.getBucket());
+
+        // an old version read late does not replace the newer properties
+        S3OsProperties.convertFrom(configMap("cache-test", 1L, "halo"));
+        assertSame(changed,
+            S3OsProperties.convertFrom(configMap("cache-test", 2L, "halo-changed")));
+    }
+
+    @Test
+    void parseAgainAfterCacheIsCleared() {
+        var first = S3OsProperties.convertFrom(configMap("clear-test", 1L, "halo"));
+
+        S3OsProperties.clearCache();
+
+        assertNotSame(first, S3OsProperties.convertFrom(configMap("clear-test", 1L, "halo")));
+    }
+
+    @Test
+    void parseConfigMapWithoutVersionEveryTime() {
+        var first = S3OsProperties.convertFrom(configMap("no-version", null, "halo"));
+        var second = S3OsProperties.convertFrom(configMap("no-version", null, "halo"));
+        assertNotSame(first, second);
+    }
+
+    static ConfigMap configMap(String name, Long version, String bucket) {
+        var metadata = new Metadata();
+        metadata.setName(name);
+        metadata.setVersion(version);
+        var configMap = new ConfigMap();
+        configMap.setMetadata(metadata);
+        configMap.setData(Map.of("default", "{\"bucket\":\"" + bucket + "\"}"));
+        return configMap;
+    }
+}
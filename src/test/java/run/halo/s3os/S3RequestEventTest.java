@@ -0,0 +1,76 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+class S3RequestEventTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void recordRequestsAndPartBuffers() throws Exception {
+        var delegate = mock(S3Operations.class);
+        when(delegate.putObject(any(), any()))
+            .thenReturn(Mono.just(PutObjectResponse.builder().build()));
+        var operations = new S3Metrics(new SimpleMeterRegistry())
+            .instrument(delegate, "policy-config");
+        var content = Flux.just((DataBuffer) DefaultDataBufferFactory.sharedInstance
+            .wrap("halo".getBytes(StandardCharsets.US_ASCII)));
+
+        List<RecordedEvent> events;
+        try (var recording = new Recording()) {
+            recording.enable(S3RequestEvent.class).withoutThreshold();
+            recording.enable(PartBufferEvent.class).withoutThreshold();
+            recording.start();
+
+            PartAssembler.assemble(content, 3)
+                .concatMap((part) -> operations.putObject(PutObjectRequest.builder()
+                    .bucket("halo")
+                    .key("halo.txt")
+                    .build(), part))
+                .blockLast();
+
+            recording.stop();
+            var file = tempDir.resolve("recording.jfr");
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+            Files.delete(file);
+        }
+
+        var requests = events.stream()
+            .filter((event) -> event.getEventType().getName().equals("run.halo.s3os.S3Request"))
+            .toList();
+        assertEquals(2, requests.size());
+        var request = requests.get(0);
+        assertEquals("putObject", request.getString("operation"));
+        assertEquals("policy-config", request.getString("configMap"));
+        assertEquals("halo.txt", request.getString("objectKey"));
+        assertEquals("success", request.getString("outcome"));
+        assertEquals(4, requests.stream().mapToLong((event) -> event.getLong("bytes")).sum());
+
+        assertEquals(2, events.stream()
+            .filter((event) -> event.getEventType().getName().equals("run.halo.s3os.PartBuffer"))
+            .count());
+    }
+}
@@ -0,0 +1,140 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Upload throughput, latency and allocation of the whole pipeline against {@link FakeS3Server},
+ * for a matrix of file sizes and concurrent uploads. Not part of the regular tests, run it with
+ * {@code ./gradlew uploadBenchmark}. System properties, also taken from Gradle project properties
+ * of the same name:
+ * <ul>
+ *     <li>{@code uploadBenchmark.sizes}: file sizes in KB, default {@code 64,8192,65536}</li>
+ *     <li>{@code uploadBenchmark.concurrency}: concurrent uploads, default {@code 1,4,16}</li>
+ *     <li>{@code uploadBenchmark.latency}: latency of the server in ms, default 0</li>
+ *     <li>{@code uploadBenchmark.bandwidth}: bandwidth of each request in MB/s, default
+ *     unlimited</li>
+ *     <li>{@code uploadBenchmark.errorRate}: share of failing requests, default 0</li>
+ *     <li>{@code uploadBenchmark.clientEngine}: {@code blocking} or {@code async}</li>
+ *     <li>{@code uploadBenchmark.output}: CSV file the results are written to</li>
+ * </ul>
+ * Allocation is measured for the whole JVM, including the fake server, which keeps no content.
+ */
+@Tag("benchmark")
+class UploadBenchmark {
+
+    static final String PREFIX = "uploadBenchmark.";
+
+    static final int KB = 1024;
+
+    static final long MIN_BYTES_PER_ROUND = 256L * KB * KB;
+
+    @Test
+    void measureUploadThroughput() throws IOException {
+        var sizes = intList("sizes", "64,8192,65536");
+        var concurrencyLevels = intList("concurrency", "1,4,16");
+        var results = new ArrayList<String>();
+        results.add("sizeKb,concurrency,uploads,throughputMbPerSecond,p50Ms,p99Ms,"
+            + "allocatedKbPerUpload");
+        try (var server = FakeS3Server.start()) {
+            server.keepContent(false)
+                .latency(Duration.ofMillis(Long.getLong(PREFIX + "latency", 0)))
+                .bandwidth(Long.getLong(PREFIX + "bandwidth", 0) * KB * KB)
+                .errorRate(Double.parseDouble(System.getProperty(PREFIX + "errorRate", "0")));
+            var properties = server.properties("halo");
+            properties.setClientEngine(S3OsProperties.ClientEngine.valueOf(
+                System.getProperty(PREFIX + "clientEngine", "blocking")));
+            var metrics = new S3Metrics(new SimpleMeterRegistry());
+            var clientPool = new S3ClientPool(metrics);
+            var handler = UploadPipelineTest.newHandler(clientPool, metrics);
+            try {
+                System.out.printf("%10s %12s %8s %10s %10s %10s %14s%n", "size(KB)",
+                    "concurrency", "uploads", "MB/s", "p50(ms)", "p99(ms)", "alloc(KB)/up");
+                for (var size : sizes) {
+                    var content = UploadPipelineTest.randomBytes(size * KB);
+                    // warm up the clients and the JIT with the same work
+                    round(handler, properties, clientPool, content, 1, 2);
+                    for (var concurrency : concurrencyLevels) {
+                        var uploads = (int) Math.max(concurrency * 4L,
+                            MIN_BYTES_PER_ROUND / content.length);
+                        var result = round(handler, properties, clientPool, content, concurrency,
+                            uploads);
+                        System.out.printf("%10d %12d %8d %10.1f %10.1f %10.1f %14d%n", size,
+                            concurrency, uploads, result.throughput(), result.p50(),
+                            result.p99(), result.allocatedPerUpload() / KB);
+                        results.add(String.format(Locale.ROOT, "%d,%d,%d,%.2f,%.2f,%.2f,%d",
+                            size, concurrency, uploads, result.throughput(), result.p50(),
+                            result.p99(), result.allocatedPerUpload() / KB));
+                        server.clear();
+                    }
+                }
+            } finally {
+                clientPool.destroy();
+            }
+        }
+        var output = System.getProperty(PREFIX + "output");
+        if (output != null) {
+            var path = Path.of(output);
+            Files.createDirectories(path.getParent());
+            Files.write(path, results);
+        }
+    }
+
+    Result round(S3OsAttachmentHandler handler, S3OsProperties properties,
+                 S3ClientPool clientPool, byte[] content, int concurrency, int uploads) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var counter = new AtomicInteger();
+        var allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        var start = System.nanoTime();
+        var latencies = Flux.range(0, uploads)
+            .flatMap((index) -> Mono.defer(() -> {
+                var uploadStart = System.nanoTime();
+                var fileName = "benchmark-" + counter.incrementAndGet() + ".bin";
+                return UploadPipelineTest.upload(handler, properties, clientPool, fileName,
+                        content)
+                    .map((objectDetail) -> {
+                        assertEquals(content.length, objectDetail.contentLength());
+                        return (System.nanoTime() - uploadStart) / 1_000_000.0;
+                    });
+            }), concurrency)
+            .collectList()
+            .block();
+        var elapsed = System.nanoTime() - start;
+        var allocated = threads.getTotalThreadAllocatedBytes() - allocatedBefore;
+
+        var sorted = latencies.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        var throughput = (double) content.length * uploads / KB / KB / (elapsed / 1e9);
+        return new Result(throughput, percentile(sorted, 0.5), percentile(sorted, 0.99),
+            allocated / uploads);
+    }
+
+    static double percentile(double[] sorted, double percentile) {
+        var index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    static List<Integer> intList(String name, String defaultValue) {
+        return Arrays.stream(System.getProperty(PREFIX + name, defaultValue).split(","))
+            .map(String::trim)
+            .map(Integer::valueOf)
+            .toList();
+    }
+
+    record Result(double throughput, double p50, double p99, long allocatedPerUpload) {
+    }
+}
@@ -0,0 +1,75 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+class UploadChecksumsTest {
+
+    final DefaultDataBufferFactory factory = DefaultDataBufferFactory.sharedInstance;
+
+    @Test
+    void computeCrc32cOfPartsAndObject() {
+        var checksums = new UploadChecksums(S3OsProperties.ChecksumAlgorithm.crc32c, true);
+        var content = Flux.just("1234", "56789")
+            .map(chunk -> (DataBuffer) factory.wrap(chunk.getBytes(StandardCharsets.US_ASCII)));
+
+        var parts = PartAssembler.assemble(content, partNumber -> 3, ByteBuffer::allocate,
+                checksums)
+            .collectList()
+            .block();
+
+        assertEquals(3, parts.size());
+        assertEquals(crc32c("123"), checksums.take(parts.get(0)));
+        assertEquals(crc32c("456"), checksums.take(parts.get(1)));
+        assertEquals(crc32c("789"), checksums.take(parts.get(2)));
+        assertNull(checksums.take(parts.get(0)));
+        // check value of CRC32C
+        assertEquals(base64(0xE3, 0x06, 0x92, 0x83), checksums.objectChecksum());
+    }
+
+    @Test
+    void computeSha256OfObject() {
+        var checksums = new UploadChecksums(S3OsProperties.ChecksumAlgorithm.sha256, true);
+        var content = Flux.just((DataBuffer) factory.wrap("abc".getBytes()));
+
+        PartAssembler.assemble(content, partNumber -> 2, ByteBuffer::allocate, checksums)
+            .blockLast();
+
+        assertEquals("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=", checksums.objectChecksum());
+    }
+
+    @Test
+    void noObjectChecksumForPartOfObject() {
+        var checksums = new UploadChecksums(S3OsProperties.ChecksumAlgorithm.crc32c, false);
+        var content = Flux.just((DataBuffer) factory.wrap("123".getBytes()));
+
+        var part = PartAssembler.assemble(content, partNumber -> 5, ByteBuffer::allocate,
+                checksums)
+            .blockLast();
+
+        assertEquals(crc32c("123"), checksums.take(part));
+        assertNull(checksums.objectChecksum());
+    }
+
+    static String crc32c(String content) {
+        var checksum = ContentChecksum.create(S3OsProperties.ChecksumAlgorithm.crc32c);
+        checksum.update(ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII)));
+        return checksum.finish();
+    }
+
+    static String base64(int... bytes) {
+        var array = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            array[i] = (byte) bytes[i];
+        }
+        return Base64.getEncoder().encodeToString(array);
+    }
+}
@@ -0,0 +1,209 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.multipart.FilePart;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import run.halo.app.core.extension.attachment.Policy;
+import run.halo.app.core.extension.attachment.endpoint.AttachmentHandler;
+import run.halo.app.extension.ConfigMap;
+import run.halo.app.extension.Metadata;
+import run.halo.app.extension.ReactiveExtensionClient;
+import run.halo.app.plugin.ReactiveSettingFetcher;
+
+/**
+ * Uploads through the whole pipeline, from the request body to {@link FakeS3Server}.
+ */
+class UploadPipelineTest {
+
+    static final int MB = 1024 * 1024;
+
+    static FakeS3Server server;
+
+    S3Metrics metrics;
+
+    S3ClientPool clientPool;
+
+    S3OsAttachmentHandler handler;
+
+    S3OsProperties properties;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        server = FakeS3Server.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.close();
+    }
+
+    @BeforeEach
+    void setUp() {
+        server.clear();
+        metrics = new S3Metrics(new SimpleMeterRegistry());
+        clientPool = new S3ClientPool(metrics);
+        handler = newHandler(clientPool, metrics);
+        properties = server.properties("halo");
+    }
+
+    @AfterEach
+    void tearDown() {
+        clientPool.destroy();
+    }
+
+    @Test
+    void uploadSmallFileInOneRequest() {
+        var content = randomBytes(1024);
+
+        var objectDetail = upload(handler, properties, clientPool, "halo.png", content).block();
+
+        assertEquals(1024, objectDetail.contentLength());
+        assertArrayEquals(content, server.content("halo", "halo.png"));
+        assertEquals(1, server.requestCount("PutObject"));
+        assertEquals(0, server.requestCount("CreateMultipartUpload"));
+    }
+
+    @Test
+    void uploadLargeFileInPartsWithChecksums() {
+        properties.setChecksumAlgorithm(S3OsProperties.ChecksumAlgorithm.crc32c);
+        var content = randomBytes(12 * MB);
+
+        var objectDetail = upload(handler, properties, clientPool, "halo.mp4", content).block();
+
+        assertEquals(12 * MB, objectDetail.contentLength());
+        assertArrayEquals(content, server.content("halo", "halo.mp4"));
+        assertTrue(server.requestCount("UploadPart") >= 2);
+        assertEquals(1, server.requestCount("CompleteMultipartUpload"));
+        assertEquals(0, server.uploadsInProgress());
+    }
+
+    @Test
+    void uploadFormFileWithoutContentLengthInTargetSizedParts() {
+        var content = randomBytes(12 * MB);
+
+        // browsers send files as multipart/form-data parts without a content length
+        var objectDetail = upload(handler, properties, clientPool, "halo.mp4",
+            new HttpHeaders(), content).block();
+
+        assertEquals(12 * MB, objectDetail.contentLength());
+        assertTrue(objectDetail.uploadState().partSizing.growing());
+        assertArrayEquals(content, server.content("halo", "halo.mp4"));
+        assertEquals(3, server.requestCount("UploadPart"));
+    }
+
+    @Test
+    void renameWhenConditionalWriteFindsObject() {
+        properties.setConditionalWrites(true);
+        upload(handler, properties, clientPool, "halo.png", randomBytes(16)).block();
+
+        var objectDetail = upload(handler, properties, clientPool, "halo.png", randomBytes(16))
+            .block();
+
+        assertNotEquals("halo.png", objectDetail.uploadState().objectKey);
+        assertTrue(server.exists("halo", objectDetail.uploadState().objectKey));
+        assertEquals(0, server.requestCount("HeadObject"));
+    }
+
+    @Test
+    void renameLargeFileBeforeSendingPartsWithConditionalWrites() {
+        properties.setConditionalWrites(true);
+        upload(handler, properties, clientPool, "halo.mp4", randomBytes(16)).block();
+
+        var content = randomBytes(12 * MB);
+        var objectDetail = upload(handler, properties, clientPool, "halo.mp4", content).block();
+
+        assertNotEquals("halo.mp4", objectDetail.uploadState().objectKey);
+        assertArrayEquals(content, server.content("halo", objectDetail.uploadState().objectKey));
+        // found the object, then the new name free
+        assertEquals(2, server.requestCount("HeadObject"));
+        assertEquals(0, server.uploadsInProgress());
+    }
+
+    static S3OsAttachmentHandler newHandler(S3ClientPool clientPool, S3Metrics metrics) {
+        var settingFetcher = mock(ReactiveSettingFetcher.class);
+        when(settingFetcher.fetch(PartBufferPool.SETTING_GROUP,
+            PartBufferPool.UploadSettings.class)).thenReturn(Mono.empty());
+        return new S3OsAttachmentHandler(clientPool, new PartBufferPool(settingFetcher),
+            new PartStager(), mock(ReactiveExtensionClient.class), metrics);
+    }
+
+    static Mono<S3OsAttachmentHandler.ObjectDetail> upload(S3OsAttachmentHandler handler,
+                                                           S3OsProperties properties,
+                                                           S3ClientPool clientPool,
+                                                           String fileName, byte[] content) {
+        var headers = new HttpHeaders();
+        headers.setContentLength(content.length);
+        return upload(handler, properties, clientPool, fileName, headers, content);
+    }
+
+    static Mono<S3OsAttachmentHandler.ObjectDetail> upload(S3OsAttachmentHandler handler,
+                                                           S3OsProperties properties,
+                                                           S3ClientPool clientPool,
+                                                           String fileName, HttpHeaders headers,
+                                                           byte[] content) {
+        var file = new BodyFilePart(fileName, headers, chunks(content, 64 * 1024));
+
+        var policyMetadata = new Metadata();
+        policyMetadata.setName("s3-policy");
+        var policy = new Policy();
+        policy.setMetadata(policyMetadata);
+        var configMapMetadata = new Metadata();
+        configMapMetadata.setName("s3-policy-config");
+        configMapMetadata.setVersion(1L);
+        var configMap = new ConfigMap();
+        configMap.setMetadata(configMapMetadata);
+        var uploadContext = new AttachmentHandler.UploadContext(file, policy, configMap);
+        return Mono.using(() -> clientPool.acquire(configMap, properties),
+            (lease) -> handler.upload(uploadContext, properties, lease.operations()),
+            S3ClientPool.Lease::close);
+    }
+
+    /**
+     * The content as the request body would arrive, in chunks wrapping the given bytes.
+     */
+    static Flux<DataBuffer> chunks(byte[] content, int chunkSize) {
+        return Flux.range(0, (content.length + chunkSize - 1) / chunkSize)
+            .map((index) -> DefaultDataBufferFactory.sharedInstance.wrap(ByteBuffer.wrap(content,
+                index * chunkSize, Math.min(chunkSize, content.length - index * chunkSize))));
+    }
+
+    static byte[] randomBytes(int size) {
+        var bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    record BodyFilePart(String filename, HttpHeaders headers, Flux<DataBuffer> content)
+        implements FilePart {
+
+        @Override
+        public String name() {
+            return "file";
+        }
+
+        @Override
+        public Mono<Void> transferTo(Path dest) {
+            return Mono.error(new UnsupportedOperationException());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package run.halo.s3os;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class UrlSuffixLookupTest {
+
+    final List<S3OsProperties.urlSuffixItem> items = List.of(
+        new S3OsProperties.urlSuffixItem("jpg,png,gif", "?imageMogr2/format/webp"),
+        new S3OsProperties.urlSuffixItem("pdf,PNG", "?123=123"),
+        new S3OsProperties.urlSuffixItem("tar.gz", "?archive"),
+        new S3OsProperties.urlSuffixItem("gz", "?gzip")
+    );
+
+    @Test
+    void findSameUrlSuffixAsUrlUtils() {
+        var lookup = UrlSuffixLookup.compile(items);
+        for (var fileName : List.of("image.png", "Document.PDF", "backup.tar.gz", "log.gz",
+            "a.b.JPG", "unknown.txt", "example", "", ".gz")) {
+            assertEquals(UrlUtils.findUrlSuffix(items, fileName), lookup.find(fileName),
+                fileName);
+        }
+    }
+
+    @Test
+    void firstItemWins() {
+        var lookup = UrlSuffixLookup.compile(items);
+        assertEquals("?imageMogr2/format/webp", lookup.find("image.PNG"));
+        assertEquals("?archive", lookup.find("backup.tar.gz"));
+    }
+
+    @Test
+    void findNothingWithoutItems() {
+        assertNull(UrlSuffixLookup.compile(null).find("image.png"));
+        assertNull(UrlSuffixLookup.compile(List.of()).find("image.png"));
+    }
+
+    @Test
+    void compileAgainWhenUrlSuffixesChange() {
+        var properties = new S3OsProperties();
+        properties.setUrlSuffixes(items);
+        assertEquals("?123=123", properties.findUrlSuffix("a.pdf"));
+
+        properties.setUrlSuffixes(List.of(new S3OsProperties.urlSuffixItem("pdf", "?pdf")));
+        assertEquals("?pdf", properties.findUrlSuffix("a.pdf"));
+    }
+}